@@ -0,0 +1,383 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.Comparator;
+
+/**
+ * Computes several aggregates of a sequence in one pass, for example its
+ * count, sum, minimum and maximum together. An aggregation is immutable;
+ * every method adding an aggregate returns a new aggregation, so one can be
+ * built once and reused. Pass it to {@link LinqQuery#aggregate(Aggregation)}
+ * or {@link ParallelQuery#aggregate(Aggregation)}; the results come in the
+ * order the aggregates were added.
+ *
+ * @author ziaagikian
+ * @param <T> The element type of the aggregated sequence
+ */
+public final class Aggregation<T> {
+
+	/** Marks a minimum or maximum which has seen no element yet. */
+	private static final Object NONE = new Object();
+
+	/** Creates the counter of count and sumLong. */
+	private static final Factory<Object> COUNTER = new Factory<Object>() {
+
+		@Override
+		public Object create() {
+			return new long[1];
+		}
+	};
+
+	/** Combines the counters of count and sumLong. */
+	private static final Joint<Object, Object, Object> SUM_LONG = new Joint<Object, Object, Object>() {
+
+		@Override
+		public Object join(Object arg1, Object arg2) {
+			((long[]) arg1)[0] += ((long[]) arg2)[0];
+			return arg1;
+		}
+	};
+
+	/** The aggregates in result order. */
+	private final Component[] mComponents;
+
+	/**
+	 * Instantiates a new aggregation.
+	 *
+	 * @param components the components
+	 */
+	private Aggregation(Component[] components) {
+		this.mComponents = components;
+	}
+
+	/**
+	 * Creates an aggregation without any aggregate.
+	 *
+	 * @param <T> the generic type
+	 * @return the aggregation
+	 */
+	public static <T> Aggregation<T> create() {
+		return new Aggregation<T>(new Component[0]);
+	}
+
+	/**
+	 * Adds an aggregate defined by a seed {@code Factory}, an accumulator and
+	 * an associative combiner of partial results. Its result is the final
+	 * accumulate.
+	 *
+	 * @param <TAccumulate> the generic type
+	 * @param seedFactory            A {@code Factory<T>} creating the seed of every partial result.
+	 * @param accumulator            A {@code Joint<T1, T2, TResult>} adding an element to an
+	 *            accumulate.
+	 * @param combiner            A {@code Joint<T1, T2, TResult>} combining two partial
+	 *            results, the first coming before the second in the sequence.
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <TAccumulate> Aggregation<T> with(
+			Factory<TAccumulate> seedFactory,
+			Joint<TAccumulate, T, TAccumulate> accumulator,
+			Joint<TAccumulate, TAccumulate, TAccumulate> combiner) {
+		return this.append(new Component((Factory) seedFactory,
+				(Joint) accumulator, (Joint) combiner));
+	}
+
+	/**
+	 * Adds the number of elements, as an {@code Integer}.
+	 *
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	public Aggregation<T> count() {
+		return this.append(new Component(COUNTER, new Joint<Object, Object, Object>() {
+
+			@Override
+			public Object join(Object arg1, Object arg2) {
+				((long[]) arg1)[0]++;
+				return arg1;
+			}
+		}, SUM_LONG) {
+
+			@Override
+			Object finish(Object accumulate) {
+				return (int) ((long[]) accumulate)[0];
+			}
+		});
+	}
+
+	/**
+	 * Adds the sum of the values selected from the elements, as a
+	 * {@code Long}. Null values are ignored.
+	 *
+	 * @param selector            A {@code Selector<T, TResult>} to extract the value to sum.
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	public Aggregation<T> sumLong(final Selector<T, ? extends Number> selector) {
+		return this.append(new Component(COUNTER, new Joint<Object, Object, Object>() {
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object join(Object arg1, Object arg2) {
+				Number value = selector.select((T) arg2);
+				if (value != null) {
+					((long[]) arg1)[0] += value.longValue();
+				}
+				return arg1;
+			}
+		}, SUM_LONG) {
+
+			@Override
+			Object finish(Object accumulate) {
+				return ((long[]) accumulate)[0];
+			}
+		});
+	}
+
+	/**
+	 * Adds the sum of the values selected from the elements, as a
+	 * {@code Double}. Null values are ignored.
+	 *
+	 * @param selector            A {@code Selector<T, TResult>} to extract the value to sum.
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	public Aggregation<T> sumDouble(final Selector<T, ? extends Number> selector) {
+		return this.append(new Component(new Factory<Object>() {
+
+			@Override
+			public Object create() {
+				return new double[1];
+			}
+		}, new Joint<Object, Object, Object>() {
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object join(Object arg1, Object arg2) {
+				Number value = selector.select((T) arg2);
+				if (value != null) {
+					((double[]) arg1)[0] += value.doubleValue();
+				}
+				return arg1;
+			}
+		}, new Joint<Object, Object, Object>() {
+
+			@Override
+			public Object join(Object arg1, Object arg2) {
+				((double[]) arg1)[0] += ((double[]) arg2)[0];
+				return arg1;
+			}
+		}) {
+
+			@Override
+			Object finish(Object accumulate) {
+				return ((double[]) accumulate)[0];
+			}
+		});
+	}
+
+	/**
+	 * Adds the smallest element according to specified {@code Comparator<T>},
+	 * or <code>null</code> if the sequence is empty. The first of equal
+	 * elements wins.
+	 *
+	 * @param comparator            A {@code Comparator<T>} to compare elements, or
+	 *            <code>null</code> for their natural order.
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	public Aggregation<T> min(Comparator<T> comparator) {
+		return this.append(extremum(comparator, 1));
+	}
+
+	/**
+	 * Adds the largest element according to specified {@code Comparator<T>},
+	 * or <code>null</code> if the sequence is empty. The first of equal
+	 * elements wins.
+	 *
+	 * @param comparator            A {@code Comparator<T>} to compare elements, or
+	 *            <code>null</code> for their natural order.
+	 * @return A new {@code Aggregation<T>} computing the aggregate as well.
+	 */
+	public Aggregation<T> max(Comparator<T> comparator) {
+		return this.append(extremum(comparator, -1));
+	}
+
+	/**
+	 * Gets the number of aggregates.
+	 *
+	 * @return the number of aggregates
+	 */
+	public int size() {
+		return this.mComponents.length;
+	}
+
+	/**
+	 * Creates the minimum or maximum aggregate.
+	 *
+	 * @param comparator the comparator, or null
+	 * @param sign 1 to keep the smallest element, -1 the largest
+	 * @return the component
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Component extremum(Comparator<?> comparator, final int sign) {
+		final Comparator<Object> order = comparator != null ? (Comparator) comparator
+				: new NaturalComparator();
+		final Joint<Object, Object, Object> keep = new Joint<Object, Object, Object>() {
+
+			@Override
+			public Object join(Object arg1, Object arg2) {
+				Object[] holder = (Object[]) arg1;
+				if (holder[0] == NONE
+						|| sign * order.compare(arg2, holder[0]) < 0) {
+					holder[0] = arg2;
+				}
+				return holder;
+			}
+		};
+		return new Component(new Factory<Object>() {
+
+			@Override
+			public Object create() {
+				return new Object[] { NONE };
+			}
+		}, keep, new Joint<Object, Object, Object>() {
+
+			@Override
+			public Object join(Object arg1, Object arg2) throws Exception {
+				Object other = ((Object[]) arg2)[0];
+				return other == NONE ? arg1 : keep.join(arg1, other);
+			}
+		}) {
+
+			@Override
+			Object finish(Object accumulate) {
+				Object rs = ((Object[]) accumulate)[0];
+				return rs == NONE ? null : rs;
+			}
+		};
+	}
+
+	/**
+	 * Returns a copy of the aggregation with one more component.
+	 *
+	 * @param component the component
+	 * @return the aggregation
+	 */
+	private Aggregation<T> append(Component component) {
+		Component[] components = new Component[this.mComponents.length + 1];
+		System.arraycopy(this.mComponents, 0, components, 0,
+				this.mComponents.length);
+		components[this.mComponents.length] = component;
+		return new Aggregation<T>(components);
+	}
+
+	/**
+	 * Creates the accumulates of all aggregates.
+	 *
+	 * @return the accumulates
+	 */
+	Object[] seed() {
+		Object[] rs = new Object[this.mComponents.length];
+		for (int i = 0; i < rs.length; i++) {
+			rs[i] = this.mComponents[i].seedFactory.create();
+		}
+		return rs;
+	}
+
+	/**
+	 * Adds an element to all accumulates.
+	 *
+	 * @param accumulates the accumulates
+	 * @param item the element
+	 * @return the accumulates
+	 * @throws Exception the exception thrown by an accumulator
+	 */
+	Object[] accumulate(Object[] accumulates, T item) throws Exception {
+		for (int i = 0; i < accumulates.length; i++) {
+			accumulates[i] = this.mComponents[i].accumulator.join(
+					accumulates[i], item);
+		}
+		return accumulates;
+	}
+
+	/**
+	 * Combines two partial results into the first one.
+	 *
+	 * @param first the accumulates of the earlier elements
+	 * @param second the accumulates of the later elements
+	 * @return the combined accumulates
+	 * @throws Exception the exception thrown by a combiner
+	 */
+	Object[] combine(Object[] first, Object[] second) throws Exception {
+		for (int i = 0; i < first.length; i++) {
+			first[i] = this.mComponents[i].combiner.join(first[i], second[i]);
+		}
+		return first;
+	}
+
+	/**
+	 * Turns the accumulates into the results.
+	 *
+	 * @param accumulates the accumulates
+	 * @return the results
+	 */
+	Object[] finish(Object[] accumulates) {
+		for (int i = 0; i < accumulates.length; i++) {
+			accumulates[i] = this.mComponents[i].finish(accumulates[i]);
+		}
+		return accumulates;
+	}
+
+	/**
+	 * One aggregate. Built-in aggregates accumulate into mutable holders and
+	 * unwrap them in {@link #finish(Object)}.
+	 */
+	private static class Component {
+
+		/** The seed factory. */
+		final Factory<Object> seedFactory;
+
+		/** The accumulator. */
+		final Joint<Object, Object, Object> accumulator;
+
+		/** The combiner. */
+		final Joint<Object, Object, Object> combiner;
+
+		/**
+		 * Instantiates a new component.
+		 *
+		 * @param seedFactory the seed factory
+		 * @param accumulator the accumulator
+		 * @param combiner the combiner
+		 */
+		Component(Factory<Object> seedFactory,
+				Joint<Object, Object, Object> accumulator,
+				Joint<Object, Object, Object> combiner) {
+			this.seedFactory = seedFactory;
+			this.accumulator = accumulator;
+			this.combiner = combiner;
+		}
+
+		/**
+		 * Turns the final accumulate into the result.
+		 *
+		 * @param accumulate the accumulate
+		 * @return the result
+		 */
+		Object finish(Object accumulate) {
+			return accumulate;
+		}
+	}
+}
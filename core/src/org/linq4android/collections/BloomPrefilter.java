@@ -0,0 +1,195 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+/**
+ * Configures the Bloom filter a join builds from its lookup keys, and
+ * collects how many probe rows the filter pruned. A probe row whose key is
+ * not in the filter is dropped without a lookup; the false positive rate is
+ * the share of unmatched rows which still get through to the lookup. Pass
+ * the same prefilter to several queries to add up their statistics; the
+ * counters are not synchronized.
+ *
+ * @author ziaagikian
+ */
+public final class BloomPrefilter {
+
+	/** The wanted false positive rate. */
+	private final double mFalsePositiveRate;
+
+	/** The number of probe rows tested. */
+	private long mProbedCount;
+
+	/** The number of probe rows rejected by the filter. */
+	private long mPrunedCount;
+
+	/**
+	 * Instantiates a new prefilter with a false positive rate of 1%.
+	 */
+	public BloomPrefilter() {
+		this(0.01);
+	}
+
+	/**
+	 * Instantiates a new prefilter.
+	 *
+	 * @param falsePositiveRate the wanted false positive rate, between 0 and 1
+	 */
+	public BloomPrefilter(double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("falsePositiveRate");
+		}
+		this.mFalsePositiveRate = falsePositiveRate;
+	}
+
+	/**
+	 * Gets the false positive rate.
+	 *
+	 * @return the false positive rate
+	 */
+	public double getFalsePositiveRate() {
+		return this.mFalsePositiveRate;
+	}
+
+	/**
+	 * Gets the number of probe rows tested against a filter.
+	 *
+	 * @return the number of probe rows
+	 */
+	public long getProbedCount() {
+		return this.mProbedCount;
+	}
+
+	/**
+	 * Gets the number of probe rows rejected without a lookup.
+	 *
+	 * @return the number of pruned rows
+	 */
+	public long getPrunedCount() {
+		return this.mPrunedCount;
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public void resetStatistics() {
+		this.mProbedCount = 0;
+		this.mPrunedCount = 0;
+	}
+
+	/**
+	 * Creates a filter holding specified key hash codes.
+	 *
+	 * @param hashes the spread hash codes of the keys
+	 * @return the filter
+	 */
+	Filter create(int[] hashes) {
+		Filter rs = new Filter(this, hashes.length);
+		for (int hash : hashes) {
+			rs.add(hash);
+		}
+		return rs;
+	}
+
+	/**
+	 * A blocked Bloom filter over key hash codes: the bits of a key all fall
+	 * in one block of 512 bits, a cache line, so a probe reads one line of
+	 * memory at most. The block and the bits come from one 64 bit mix of the
+	 * hash code.
+	 */
+	static final class Filter {
+
+		/** The number of longs per block. */
+		private static final int BLOCK_WORDS = 8;
+
+		/** The prefilter collecting the statistics. */
+		private final BloomPrefilter mOwner;
+
+		/** The bits. */
+		private final long[] mBits;
+
+		/** The mask of the block index. */
+		private final int mBlockMask;
+
+		/** The number of bits per key. */
+		private final int mHashCount;
+
+		/**
+		 * Instantiates a new filter sized for the false positive rate of its
+		 * owner.
+		 *
+		 * @param owner the owner
+		 * @param expectedKeys the number of keys
+		 */
+		Filter(BloomPrefilter owner, int expectedKeys) {
+			this.mOwner = owner;
+			int n = Math.max(1, expectedKeys);
+			double ln2 = Math.log(2);
+			// blocking costs some accuracy, paid for with 20% more bits
+			double bits = -n * Math.log(owner.mFalsePositiveRate)
+					/ (ln2 * ln2) * 1.2;
+			int blocks = 1;
+			while (blocks < bits / (BLOCK_WORDS * 64) && blocks < (1 << 24)) {
+				blocks <<= 1;
+			}
+			this.mBits = new long[blocks * BLOCK_WORDS];
+			this.mBlockMask = blocks - 1;
+			this.mHashCount = Math.max(1, Math.min(16, (int) Math.round(-Math
+					.log(owner.mFalsePositiveRate) / ln2)));
+		}
+
+		/**
+		 * Adds a key.
+		 *
+		 * @param hash the spread hash code of the key
+		 */
+		void add(int hash) {
+			long mixed = hash * 0x9E3779B97F4A7C15L;
+			int block = ((int) (mixed >>> 40) & this.mBlockMask) * BLOCK_WORDS;
+			int h = (int) mixed;
+			int step = (int) (mixed >>> 32) | 1;
+			for (int i = 0; i < this.mHashCount; i++) {
+				int bit = h & 511;
+				this.mBits[block + (bit >>> 6)] |= 1L << bit;
+				h += step;
+			}
+		}
+
+		/**
+		 * Tests a probe key, and counts the result.
+		 *
+		 * @param hash the spread hash code of the key
+		 * @return false if the key is certainly absent
+		 */
+		boolean mightContain(int hash) {
+			this.mOwner.mProbedCount++;
+			long mixed = hash * 0x9E3779B97F4A7C15L;
+			int block = ((int) (mixed >>> 40) & this.mBlockMask) * BLOCK_WORDS;
+			int h = (int) mixed;
+			int step = (int) (mixed >>> 32) | 1;
+			for (int i = 0; i < this.mHashCount; i++) {
+				int bit = h & 511;
+				if ((this.mBits[block + (bit >>> 6)] & (1L << bit)) == 0) {
+					this.mOwner.mPrunedCount++;
+					return false;
+				}
+				h += step;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A {@code Query<T>} whose iterators hold resources, such as the temporary
+ * files of {@link LinqQuery#graceJoin(Iterable, Selector, Selector, Joint, int)}.
+ * An iterator releases them once it is exhausted or fails; {@link #close()}
+ * releases those of every iterator still open, so that a query read only in
+ * part, for example by {@code first()}, {@code take(n)} or a downstream
+ * query, leaves nothing behind. Close it in a {@code finally} block.
+ *
+ * @author ziaagikian
+ * @param <T> The element type of collection
+ */
+public class CloseableQuery<T> extends LinqQuery<T> implements Closeable {
+
+	/** The iterators not closed yet. */
+	private final Collection<Closeable> mOpenIterators;
+
+	/**
+	 * Instantiates a new closeable query.
+	 *
+	 * @param source the source, whose iterators add themselves to
+	 *            openIterators and remove themselves once closed
+	 * @param openIterators the iterators not closed yet, synchronized
+	 */
+	CloseableQuery(Iterable<T> source, Collection<Closeable> openIterators) {
+		super(source);
+		this.mOpenIterators = openIterators;
+	}
+
+	/**
+	 * Releases the resources of every iterator of the query still open. An
+	 * iterator closed this way has no more elements; the query itself can
+	 * still be iterated again.
+	 */
+	@Override
+	public void close() {
+		ArrayList<Closeable> iterators;
+		synchronized (this.mOpenIterators) {
+			iterators = new ArrayList<Closeable>(this.mOpenIterators);
+			this.mOpenIterators.clear();
+		}
+		for (Closeable iterator : iterators) {
+			try {
+				iterator.close();
+			} catch (IOException e) {
+				// best effort, like the iterators closing themselves
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import org.linq4android.dependencies.java7.Objects;
+
+/**
+ * A key made of two or three fields of an element, for joining or grouping
+ * on several fields without a key object per element. The fields are read
+ * into a buffer which is reused for every element, and are hashed and
+ * compared there; a copy is made only for a key stored in a lookup. Pass
+ * composite keys to {@link LinqQuery#join(Iterable, CompositeKey,
+ * CompositeKey, Joint)} or {@link LinqQuery#groupBy(CompositeKey)}.
+ *
+ * @author ziaagikian
+ * @param <T> The type of elements the fields are read from
+ */
+public final class CompositeKey<T> {
+
+	/** Hashes and compares buffers field by field. */
+	static final EqualityComparer<Object[]> COMPARER = new EqualityComparer<Object[]>() {
+
+		@Override
+		public boolean equals(Object[] x, Object[] y) {
+			for (int i = 0; i < x.length; i++) {
+				if (!Objects.equals(x[i], y[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode(Object[] obj) {
+			// mix each field in: the lookups probe linearly, and the plain
+			// 31 * h + field hash of close fields gives runs of close codes
+			int rs = 1;
+			for (Object field : obj) {
+				rs = (rs ^ (field == null ? 0 : field.hashCode())) * 0x9E3779B9;
+			}
+			return rs ^ (rs >>> 16);
+		}
+	};
+
+	/** The field selectors. */
+	private final Selector<T, ?>[] mFields;
+
+	/**
+	 * Instantiates a new composite key.
+	 *
+	 * @param fields the field selectors
+	 */
+	private CompositeKey(Selector<T, ?>[] fields) {
+		this.mFields = fields;
+	}
+
+	/**
+	 * Creates a key of two fields.
+	 *
+	 * @param <T> the generic type
+	 * @param first            A {@code Selector<T, TResult>} to extract the first field.
+	 * @param second            A {@code Selector<T, TResult>} to extract the second field.
+	 * @return the composite key
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> CompositeKey<T> of(Selector<T, ?> first,
+			Selector<T, ?> second) {
+		return new CompositeKey<T>(new Selector[] { first, second });
+	}
+
+	/**
+	 * Creates a key of three fields.
+	 *
+	 * @param <T> the generic type
+	 * @param first            A {@code Selector<T, TResult>} to extract the first field.
+	 * @param second            A {@code Selector<T, TResult>} to extract the second field.
+	 * @param third            A {@code Selector<T, TResult>} to extract the third field.
+	 * @return the composite key
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> CompositeKey<T> of(Selector<T, ?> first,
+			Selector<T, ?> second, Selector<T, ?> third) {
+		return new CompositeKey<T>(new Selector[] { first, second, third });
+	}
+
+	/**
+	 * Gets the number of fields.
+	 *
+	 * @return the number of fields
+	 */
+	public int size() {
+		return this.mFields.length;
+	}
+
+	/**
+	 * Reads the fields of an element into a buffer.
+	 *
+	 * @param element the element
+	 * @param buffer the buffer, of {@link #size()} fields
+	 * @return false if a field is null
+	 */
+	boolean extract(T element, Object[] buffer) {
+		boolean rs = true;
+		for (int i = 0; i < this.mFields.length; i++) {
+			Object field = this.mFields[i].select(element);
+			buffer[i] = field;
+			rs &= field != null;
+		}
+		return rs;
+	}
+}
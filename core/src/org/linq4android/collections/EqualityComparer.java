@@ -0,0 +1,45 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+/**
+ * Provides a interface for comparing keys for equality in hash based
+ * operators. Keys which are equal must have the same hash code.
+ * 
+ * @author ziaagikian
+ *
+ * @param <T> The type of keys to compare
+ */
+public interface EqualityComparer<T> {
+
+	/**
+	 * Determines whether specified keys are equal.
+	 *
+	 * @param x the first key, may be null
+	 * @param y the second key, may be null
+	 * @return true if the keys are equal; otherwise, false
+	 */
+	public boolean equals(T x, T y);
+
+	/**
+	 * Returns a hash code for specified key.
+	 *
+	 * @param obj the key, may be null
+	 * @return the hash code
+	 */
+	public int hashCode(T obj);
+}
@@ -0,0 +1,672 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates a hash join under a memory budget. While the second sequence
+ * fits in the budget it is an ordinary hash join. Otherwise both sequences
+ * are hash partitioned into temporary files by key, and every pair of
+ * partitions is joined in memory; a partition still too large is partitioned
+ * again with another hash, and one which cannot be split because its rows
+ * share a key is joined block by block. Elements are written with Java
+ * serialization and have to be {@code Serializable}.
+ * <p>
+ * Every temporary file and stream is tracked, and {@link #close()} closes
+ * and deletes all that are left. It runs when the join is exhausted or fails,
+ * and when the {@link CloseableQuery} the iterator belongs to is closed.
+ *
+ * @param <TOuter> the generic type
+ * @param <TInner> the generic type
+ * @param <TKey> the generic type
+ * @param <TResult> the generic type
+ */
+class GraceJoinIterator<TOuter, TInner, TKey, TResult> implements
+		Iterator<TResult>, Closeable {
+
+	/** The number of partitions a partition is split into. */
+	static final int FANOUT = 16;
+
+	/** The deepest partitioning level before joining block by block. */
+	static final int MAX_LEVEL = 4;
+
+	/** The number of rows after which a stream forgets written objects. */
+	private static final int RESET_INTERVAL = 1024;
+
+	/** The m outer. */
+	private Iterable<TOuter> mOuter;
+
+	/** The m inner. */
+	private Iterable<TInner> mInner;
+
+	/** The m outer key selector. */
+	private Selector<TOuter, TKey> mOuterKeySelector;
+
+	/** The m inner key selector. */
+	private Selector<TInner, TKey> mInnerKeySelector;
+
+	/** The m joint. */
+	private Joint<TOuter, TInner, TResult> mJoint;
+
+	/** The m comparer. */
+	private EqualityComparer<TKey> mComparer;
+
+	/** The maximum number of inner rows held in memory. */
+	private int mMemoryRows;
+
+	/** The directory of the temporary files, or null for the default. */
+	private File mTempDirectory;
+
+	/** The temporary files not deleted yet. */
+	private HashSet<File> mTempFiles = new HashSet<File>();
+
+	/** The streams not closed yet. */
+	private HashSet<Closeable> mOpenStreams = new HashSet<Closeable>();
+
+	/** Whether the join has been closed. */
+	private boolean mClosed;
+
+	/** The open iterators of the query, or null. */
+	private Collection<Closeable> mOpenIterators;
+
+	/** The partitions still to join. */
+	private ArrayDeque<Partition> mPending = new ArrayDeque<Partition>();
+
+	/** The partition being joined, or null. */
+	private Partition mPartition;
+
+	/** Whether the files of the partition are deleted once it is joined. */
+	private boolean mLastBlock;
+
+	/** The lookup of the inner rows being joined. */
+	private HashLookup<TKey, TInner> mLookup;
+
+	/** The outer rows being probed. */
+	private Iterator<TOuter> mProbe;
+
+	/** The m current out. */
+	private TOuter mCurrentOut;
+
+	/** The next match in the lookup. */
+	private int mCurrentMatch = HashLookup.NONE;
+
+	/** Whether the join has started. */
+	private boolean mStarted;
+
+	/** Whether the next result has been computed. */
+	private boolean mHasNext;
+
+	/** The m current result. */
+	private TResult mCurrentResult;
+
+	/**
+	 * Instantiates a new grace join iterator.
+	 *
+	 * @param outer the outer
+	 * @param inner the inner
+	 * @param outerKeySelector the outer key selector
+	 * @param innerKeySelector the inner key selector
+	 * @param joint the joint
+	 * @param comparer the comparer, or null
+	 * @param memoryRows the maximum number of inner rows held in memory
+	 * @param tempDirectory the directory of the temporary files, or null
+	 * @param openIterators the open iterators of the query, synchronized,
+	 *            which this one is in until it is closed; or null
+	 */
+	GraceJoinIterator(Iterable<TOuter> outer, Iterable<TInner> inner,
+			Selector<TOuter, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<TOuter, TInner, TResult> joint,
+			EqualityComparer<TKey> comparer, int memoryRows,
+			File tempDirectory, Collection<Closeable> openIterators) {
+		this.mOuter = outer;
+		this.mInner = inner;
+		this.mOuterKeySelector = outerKeySelector;
+		this.mInnerKeySelector = innerKeySelector;
+		this.mJoint = joint;
+		this.mComparer = comparer;
+		this.mMemoryRows = memoryRows;
+		this.mTempDirectory = tempDirectory;
+		this.mOpenIterators = openIterators;
+		if (openIterators != null) {
+			openIterators.add(this);
+		}
+	}
+
+	/**
+	 * Reads the inner sequence, and either builds the lookup from it or
+	 * spills both sequences.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void start() throws IOException {
+		ArrayList<TInner> buffer = new ArrayList<TInner>();
+		Iterator<TInner> inner = this.mInner.iterator();
+		while (buffer.size() <= this.mMemoryRows && inner.hasNext()) {
+			buffer.add(inner.next());
+		}
+
+		if (buffer.size() <= this.mMemoryRows) {
+			this.mLookup = new HashLookup<TKey, TInner>(this.mComparer,
+					buffer.size());
+			for (TInner item : buffer) {
+				TKey key = this.mInnerKeySelector.select(item);
+				if (key != null) {
+					this.mLookup.add(key, item);
+				}
+			}
+			this.mProbe = this.mOuter.iterator();
+			this.mLastBlock = true;
+			return;
+		}
+
+		Spill innerSpill = new Spill(0);
+		for (TInner item : buffer) {
+			innerSpill.add(this.mInnerKeySelector.select(item), item);
+		}
+		buffer = null;
+		while (inner.hasNext()) {
+			TInner item = inner.next();
+			innerSpill.add(this.mInnerKeySelector.select(item), item);
+		}
+		Spill outerSpill = new Spill(0);
+		for (TOuter item : this.mOuter) {
+			outerSpill.add(this.mOuterKeySelector.select(item), item);
+		}
+		this.push(innerSpill, outerSpill, 0);
+	}
+
+	/**
+	 * Queues the partition pairs of two spills.
+	 *
+	 * @param innerSpill the inner spill
+	 * @param outerSpill the outer spill
+	 * @param level the partitioning level of the spills
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void push(Spill innerSpill, Spill outerSpill, int level)
+			throws IOException {
+		innerSpill.close();
+		outerSpill.close();
+		for (int i = 0; i < FANOUT; i++) {
+			Partition partition = new Partition(innerSpill.files[i],
+					innerSpill.counts[i], outerSpill.files[i],
+					outerSpill.counts[i], level, 0);
+			if (partition.innerCount == 0 || partition.outerCount == 0) {
+				this.delete(partition);
+			} else {
+				this.mPending.push(partition);
+			}
+		}
+	}
+
+	/**
+	 * Loads the lookup of the next partition to join, splitting partitions
+	 * which are too large first.
+	 *
+	 * @return false if no partition is left
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException the class not found exception
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean nextPartition() throws IOException,
+			ClassNotFoundException {
+		while (!this.mPending.isEmpty()) {
+			Partition partition = this.mPending.pop();
+			if (partition.innerCount > this.mMemoryRows
+					&& partition.innerSkip == 0 && partition.level < MAX_LEVEL) {
+				int level = partition.level + 1;
+				Spill innerSpill = new Spill(level);
+				FileIterator<TInner> inner = new FileIterator<TInner>(
+						partition.innerFile, partition.innerCount);
+				while (inner.hasNext()) {
+					TInner item = inner.next();
+					innerSpill.add(this.mInnerKeySelector.select(item), item);
+				}
+				Spill outerSpill = new Spill(level);
+				FileIterator<TOuter> outer = new FileIterator<TOuter>(
+						partition.outerFile, partition.outerCount);
+				while (outer.hasNext()) {
+					TOuter item = outer.next();
+					outerSpill.add(this.mOuterKeySelector.select(item), item);
+				}
+				this.delete(partition);
+				this.push(innerSpill, outerSpill, level);
+				continue;
+			}
+
+			// join one block of at most mMemoryRows inner rows
+			int count = Math.min(this.mMemoryRows, partition.innerCount
+					- partition.innerSkip);
+			this.mLookup = new HashLookup<TKey, TInner>(this.mComparer, count);
+			ObjectInputStream in = openInput(partition.innerFile);
+			try {
+				for (int i = 0; i < partition.innerSkip; i++) {
+					in.readObject();
+				}
+				for (int i = 0; i < count; i++) {
+					TInner item = (TInner) in.readObject();
+					this.mLookup.add(this.mInnerKeySelector.select(item), item);
+				}
+			} finally {
+				this.closeStream(in);
+			}
+
+			int end = partition.innerSkip + count;
+			this.mLastBlock = end == partition.innerCount;
+			if (!this.mLastBlock) {
+				this.mPending.push(new Partition(partition.innerFile,
+						partition.innerCount, partition.outerFile,
+						partition.outerCount, partition.level, end));
+			}
+			this.mPartition = partition;
+			this.mProbe = new FileIterator<TOuter>(partition.outerFile,
+					partition.outerCount);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Try find next.
+	 *
+	 * @throws Exception the exception
+	 */
+	private void tryFindNext() throws Exception {
+		if (!this.mStarted) {
+			this.mStarted = true;
+			this.start();
+		}
+
+		while (!this.mHasNext) {
+			if (this.mCurrentMatch != HashLookup.NONE) {
+				TInner inner = this.mLookup.element(this.mCurrentMatch);
+				this.mCurrentMatch = this.mLookup.next(this.mCurrentMatch);
+				this.mCurrentResult = this.mJoint.join(this.mCurrentOut, inner);
+				this.mHasNext = true;
+			} else if (this.mProbe != null && this.mProbe.hasNext()) {
+				this.mCurrentOut = this.mProbe.next();
+				TKey key = this.mOuterKeySelector.select(this.mCurrentOut);
+				this.mCurrentMatch = key == null ? HashLookup.NONE
+						: this.mLookup.first(key);
+			} else {
+				this.mProbe = null;
+				this.mLookup = null;
+				this.mCurrentOut = null;
+				if (this.mPartition != null && this.mLastBlock) {
+					this.delete(this.mPartition);
+				}
+				this.mPartition = null;
+				if (!this.nextPartition()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#hasNext()
+	 */
+	@Override
+	public boolean hasNext() {
+		if (this.mClosed) {
+			return false;
+		}
+		try {
+			this.tryFindNext();
+		} catch (RuntimeException e) {
+			this.close();
+			throw e;
+		} catch (Exception e) {
+			this.close();
+			throw new IllegalStateException(e);
+		}
+		if (!this.mHasNext) {
+			this.close();
+		}
+		return this.mHasNext;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#next()
+	 */
+	@Override
+	public TResult next() {
+		if (this.hasNext()) {
+			TResult rs = this.mCurrentResult;
+			this.mCurrentResult = null;
+			this.mHasNext = false;
+			return rs;
+		} else {
+			throw new NoSuchElementException();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#remove()
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the join: closes its open streams and deletes its temporary
+	 * files. Once closed, the iterator has no more elements.
+	 */
+	@Override
+	public void close() {
+		if (this.mOpenIterators != null) {
+			this.mOpenIterators.remove(this);
+		}
+		this.mClosed = true;
+		this.mHasNext = false;
+		this.mCurrentResult = null;
+		this.mCurrentOut = null;
+		this.mLookup = null;
+		this.mProbe = null;
+		this.mPartition = null;
+		this.mPending.clear();
+		for (Closeable stream : this.mOpenStreams) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// nothing to do, its file is deleted below anyway
+			}
+		}
+		this.mOpenStreams.clear();
+		for (File file : this.mTempFiles) {
+			file.delete();
+		}
+		this.mTempFiles.clear();
+	}
+
+	/**
+	 * Creates a temporary file.
+	 *
+	 * @return the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private File createFile() throws IOException {
+		File rs = File.createTempFile("linq4android", ".part",
+				this.mTempDirectory);
+		this.mTempFiles.add(rs);
+		return rs;
+	}
+
+	/**
+	 * Deletes the files of a partition.
+	 *
+	 * @param partition the partition
+	 */
+	private void delete(Partition partition) {
+		for (File file : new File[] { partition.innerFile,
+				partition.outerFile }) {
+			if (file != null && this.mTempFiles.remove(file)) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Opens a partition file for reading.
+	 *
+	 * @param file the file
+	 * @return the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private ObjectInputStream openInput(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		this.mOpenStreams.add(in);
+		ObjectInputStream rs = new ObjectInputStream(new BufferedInputStream(
+				in, 65536));
+		this.mOpenStreams.remove(in);
+		this.mOpenStreams.add(rs);
+		return rs;
+	}
+
+	/**
+	 * Opens a partition file for writing.
+	 *
+	 * @param file the file
+	 * @return the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private ObjectOutputStream openOutput(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		this.mOpenStreams.add(out);
+		ObjectOutputStream rs = new ObjectOutputStream(
+				new BufferedOutputStream(out, 65536));
+		this.mOpenStreams.remove(out);
+		this.mOpenStreams.add(rs);
+		return rs;
+	}
+
+	/**
+	 * Closes a stream opened by openInput or openOutput.
+	 *
+	 * @param stream the stream
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void closeStream(Closeable stream) throws IOException {
+		this.mOpenStreams.remove(stream);
+		stream.close();
+	}
+
+	/**
+	 * Hash partitions rows into temporary files. Rows with a null key never
+	 * match and are dropped.
+	 */
+	private class Spill {
+
+		/** The partitioning level, which seeds the partition hash. */
+		private final int mLevel;
+
+		/** The files by partition, null until a row is written. */
+		final File[] files = new File[FANOUT];
+
+		/** The row counts by partition. */
+		final int[] counts = new int[FANOUT];
+
+		/** The streams by partition. */
+		private final ObjectOutputStream[] mStreams = new ObjectOutputStream[FANOUT];
+
+		/**
+		 * Instantiates a new spill.
+		 *
+		 * @param level the partitioning level
+		 */
+		Spill(int level) {
+			this.mLevel = level;
+		}
+
+		/**
+		 * Writes a row to the partition of its key.
+		 *
+		 * @param key the key
+		 * @param row the row
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void add(TKey key, Object row) throws IOException {
+			if (key == null) {
+				return;
+			}
+			int hash = mComparer != null ? mComparer.hashCode(key) : key
+					.hashCode();
+			// murmur3 finalizer, seeded by level so each level splits anew
+			int h = hash ^ (this.mLevel * 0x9E3779B9);
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			h *= 0xC2B2AE35;
+			h ^= h >>> 16;
+			int partition = (h >>> 1) % FANOUT;
+
+			ObjectOutputStream out = this.mStreams[partition];
+			if (out == null) {
+				File file = createFile();
+				this.files[partition] = file;
+				out = openOutput(file);
+				this.mStreams[partition] = out;
+			}
+			out.writeObject(row);
+			if (++this.counts[partition] % RESET_INTERVAL == 0) {
+				// let the stream forget written objects, or it keeps them all
+				out.reset();
+			}
+		}
+
+		/**
+		 * Closes all streams.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void close() throws IOException {
+			for (ObjectOutputStream out : this.mStreams) {
+				if (out != null) {
+					closeStream(out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A pair of partition files, and the first inner row still to join.
+	 */
+	private static class Partition {
+
+		/** The inner file, or null if empty. */
+		final File innerFile;
+
+		/** The number of inner rows. */
+		final int innerCount;
+
+		/** The outer file, or null if empty. */
+		final File outerFile;
+
+		/** The number of outer rows. */
+		final int outerCount;
+
+		/** The partitioning level. */
+		final int level;
+
+		/** The number of inner rows already joined. */
+		final int innerSkip;
+
+		/**
+		 * Instantiates a new partition.
+		 *
+		 * @param innerFile the inner file
+		 * @param innerCount the inner count
+		 * @param outerFile the outer file
+		 * @param outerCount the outer count
+		 * @param level the level
+		 * @param innerSkip the inner rows already joined
+		 */
+		Partition(File innerFile, int innerCount, File outerFile,
+				int outerCount, int level, int innerSkip) {
+			this.innerFile = innerFile;
+			this.innerCount = innerCount;
+			this.outerFile = outerFile;
+			this.outerCount = outerCount;
+			this.level = level;
+			this.innerSkip = innerSkip;
+		}
+	}
+
+	/**
+	 * Reads the rows of a partition file.
+	 *
+	 * @param <E> the element type
+	 */
+	private class FileIterator<E> implements Iterator<E> {
+
+		/** The m input. */
+		private ObjectInputStream mInput;
+
+		/** The number of rows left. */
+		private int mRemaining;
+
+		/**
+		 * Instantiates a new file iterator.
+		 *
+		 * @param file the file
+		 * @param count the number of rows
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		FileIterator(File file, int count) throws IOException {
+			this.mInput = openInput(file);
+			this.mRemaining = count;
+			if (count == 0) {
+				closeStream(this.mInput);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return this.mRemaining > 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public E next() {
+			if (this.mRemaining == 0) {
+				throw new NoSuchElementException();
+			}
+			try {
+				E rs = (E) this.mInput.readObject();
+				if (--this.mRemaining == 0) {
+					closeStream(this.mInput);
+				}
+				return rs;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.Arrays;
+
+import org.linq4android.dependencies.java7.Objects;
+
+/**
+ * A hash index from keys to the elements having them, used by the hash
+ * joins. Keys live in an open addressing table; the elements of all keys
+ * live in one array, and the elements of a key are chained through an
+ * {@code int} array in insertion order. No object is allocated per key or per
+ * element once the arrays are large enough. The indexes of removed elements
+ * are reused by later additions.
+ * <p>
+ * Slots are placed by the spread hash code, which keeps dense keys such as
+ * sequential integers in neighbouring slots. Hash codes which cluster, such
+ * as the ones of lists of several fields, would make linear probing
+ * quadratic; once a key lands too far from its home slot, the keys are
+ * placed by a fully mixed hash code instead.
+ *
+ * @param <TKey> the generic type
+ * @param <TElement> the generic type
+ */
+class HashLookup<TKey, TElement> {
+
+	/** The index meaning "no element". */
+	static final int NONE = -1;
+
+	/** The distance from its home slot past which a new key mixes hashes. */
+	private static final int MAX_PROBES = 64;
+
+	/** The comparer, or null to use equals and hashCode of the keys. */
+	private final EqualityComparer<? super TKey> mComparer;
+
+	/** The keys by slot. */
+	private Object[] mKeys;
+
+	/** The hash codes by slot. */
+	private int[] mHashes;
+
+	/** The first element by slot, NONE for an empty slot. */
+	private int[] mHeads;
+
+	/** The last element by slot. */
+	private int[] mTails;
+
+	/** The number of used slots. */
+	private int mKeyCount;
+
+	/** The elements in insertion order. */
+	private Object[] mElements;
+
+	/** The next element with the same key, by element. */
+	private int[] mNext;
+
+	/** The number of elements. */
+	private int mSize;
+
+	/** The number of element indexes ever used. */
+	private int mUsed;
+
+	/** The first free element index, chained through mNext, or NONE. */
+	private int mFree = NONE;
+
+	/** Whether slots are placed by the mixed hash code. */
+	private boolean mMixed;
+
+	/**
+	 * Instantiates a new hash lookup.
+	 *
+	 * @param comparer the comparer, or null for equals and hashCode
+	 */
+	HashLookup(EqualityComparer<? super TKey> comparer) {
+		this(comparer, 16);
+	}
+
+	/**
+	 * Instantiates a new hash lookup for an expected number of elements.
+	 *
+	 * @param comparer the comparer, or null for equals and hashCode
+	 * @param expectedSize the expected number of elements
+	 */
+	HashLookup(EqualityComparer<? super TKey> comparer, int expectedSize) {
+		this.mComparer = comparer;
+		int capacity = 16;
+		while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		this.allocateSlots(capacity);
+		this.mElements = new Object[Math.max(16, expectedSize)];
+		this.mNext = new int[this.mElements.length];
+	}
+
+	/**
+	 * Adds an element under specified key.
+	 *
+	 * @param key the key
+	 * @param element the element
+	 */
+	void add(TKey key, TElement element) {
+		int index;
+		if (this.mFree != NONE) {
+			index = this.mFree;
+			this.mFree = this.mNext[index];
+		} else {
+			if (this.mUsed == this.mElements.length) {
+				int capacity = this.mUsed * 2;
+				this.mElements = Arrays.copyOf(this.mElements, capacity);
+				this.mNext = Arrays.copyOf(this.mNext, capacity);
+			}
+			index = this.mUsed++;
+		}
+		this.mSize++;
+		this.mElements[index] = element;
+		this.mNext[index] = NONE;
+
+		int hash = this.hash(key);
+		int slot = this.find(key, hash);
+		if (this.mHeads[slot] == NONE) {
+			int mask = this.mHeads.length - 1;
+			if (!this.mMixed
+					&& ((slot - this.home(hash, mask)) & mask) > MAX_PROBES) {
+				// the hash codes cluster: place the keys by mixed ones
+				this.mMixed = true;
+				this.rehash(this.mHeads.length);
+				slot = this.find(key, hash);
+			}
+			this.mKeys[slot] = this.retain(key);
+			this.mHashes[slot] = hash;
+			this.mHeads[slot] = index;
+			this.mKeyCount++;
+			if (this.mKeyCount * 2 > this.mHeads.length) {
+				this.rehash(this.mHeads.length * 2);
+				slot = this.find(key, hash);
+			}
+		} else {
+			this.mNext[this.mTails[slot]] = index;
+		}
+		this.mTails[slot] = index;
+	}
+
+	/**
+	 * Gets the key to store for a key added for the first time. Lookups whose
+	 * keys are reused buffers override this to store a copy.
+	 *
+	 * @param key the key
+	 * @return the key to store
+	 */
+	TKey retain(TKey key) {
+		return key;
+	}
+
+	/**
+	 * Removes the first element equal to specified one under specified key.
+	 * Once an element is removed, element indexes are no longer all below
+	 * {@link #size()}.
+	 *
+	 * @param key the key
+	 * @param element the element
+	 * @return true if an element was removed
+	 */
+	boolean remove(TKey key, Object element) {
+		int slot = this.find(key, this.hash(key));
+		int previous = NONE;
+		int index = this.mHeads[slot];
+		while (index != NONE && !Objects.equals(this.mElements[index], element)) {
+			previous = index;
+			index = this.mNext[index];
+		}
+		if (index == NONE) {
+			return false;
+		}
+
+		int next = this.mNext[index];
+		if (previous == NONE) {
+			this.mHeads[slot] = next;
+		} else {
+			this.mNext[previous] = next;
+		}
+		if (this.mTails[slot] == index) {
+			this.mTails[slot] = previous;
+		}
+		this.mElements[index] = null;
+		this.mNext[index] = this.mFree;
+		this.mFree = index;
+		this.mSize--;
+		if (this.mHeads[slot] == NONE) {
+			this.removeSlot(slot);
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the first element having specified key.
+	 *
+	 * @param key the key
+	 * @return the index of the element, or NONE
+	 */
+	int first(TKey key) {
+		return this.first(key, this.hash(key));
+	}
+
+	/**
+	 * Gets the first element having specified key whose hash code is known.
+	 *
+	 * @param key the key
+	 * @param hash the spread hash code of the key
+	 * @return the index of the element, or NONE
+	 */
+	int first(TKey key, int hash) {
+		return this.mHeads[this.find(key, hash)];
+	}
+
+	/**
+	 * Gets the next element having the same key.
+	 *
+	 * @param index the index of an element
+	 * @return the index of the next element, or NONE
+	 */
+	int next(int index) {
+		return this.mNext[index];
+	}
+
+	/**
+	 * Gets an element.
+	 *
+	 * @param index the index of the element
+	 * @return the element
+	 */
+	@SuppressWarnings("unchecked")
+	TElement element(int index) {
+		return (TElement) this.mElements[index];
+	}
+
+	/**
+	 * Gets the number of elements.
+	 *
+	 * @return the number of elements
+	 */
+	int size() {
+		return this.mSize;
+	}
+
+	/**
+	 * Gets the number of distinct keys.
+	 *
+	 * @return the number of distinct keys
+	 */
+	int keyCount() {
+		return this.mKeyCount;
+	}
+
+	/**
+	 * Gets the spread hash codes of all distinct keys.
+	 *
+	 * @return the hash codes
+	 */
+	int[] keyHashes() {
+		int[] rs = new int[this.mKeyCount];
+		int n = 0;
+		for (int i = 0; i < this.mHeads.length; i++) {
+			if (this.mHeads[i] != NONE) {
+				rs[n++] = this.mHashes[i];
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Computes the spread hash code of a key, as used by the slots.
+	 *
+	 * @param key the key
+	 * @return the hash code
+	 */
+	int hash(TKey key) {
+		int h = this.mComparer != null ? this.mComparer.hashCode(key)
+				: (key == null ? 0 : key.hashCode());
+		// spread the high bits like java.util.HashMap does
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Gets the home slot of a spread hash code.
+	 *
+	 * @param hash the spread hash code
+	 * @param mask the number of slots minus one
+	 * @return the slot
+	 */
+	private int home(int hash, int mask) {
+		if (this.mMixed) {
+			// the rest of the murmur3 finalizer; the spread was its first step
+			hash *= 0x85EBCA6B;
+			hash ^= hash >>> 13;
+			hash *= 0xC2B2AE35;
+			hash ^= hash >>> 16;
+		}
+		return hash & mask;
+	}
+
+	/**
+	 * Finds the slot of a key, or the empty slot where it belongs.
+	 *
+	 * @param key the key
+	 * @param hash the spread hash code of the key
+	 * @return the slot
+	 */
+	@SuppressWarnings("unchecked")
+	private int find(TKey key, int hash) {
+		int mask = this.mHeads.length - 1;
+		int slot = this.home(hash, mask);
+		while (this.mHeads[slot] != NONE) {
+			if (this.mHashes[slot] == hash) {
+				TKey other = (TKey) this.mKeys[slot];
+				if (this.mComparer != null ? this.mComparer.equals(other, key)
+						: Objects.equals(other, key)) {
+					return slot;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Empties a slot, and moves back the slots after it which would no
+	 * longer be found, so that no probe sequence has a gap.
+	 *
+	 * @param slot the slot
+	 */
+	private void removeSlot(int slot) {
+		int mask = this.mHeads.length - 1;
+		int gap = slot;
+		int i = slot;
+		while (true) {
+			i = (i + 1) & mask;
+			if (this.mHeads[i] == NONE) {
+				break;
+			}
+			int home = this.home(this.mHashes[i], mask);
+			// move the slot into the gap unless its home lies in (gap, i]
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				this.mKeys[gap] = this.mKeys[i];
+				this.mHashes[gap] = this.mHashes[i];
+				this.mHeads[gap] = this.mHeads[i];
+				this.mTails[gap] = this.mTails[i];
+				gap = i;
+			}
+		}
+		this.mKeys[gap] = null;
+		this.mHeads[gap] = NONE;
+		this.mKeyCount--;
+	}
+
+	/**
+	 * Allocates empty slots.
+	 *
+	 * @param capacity the number of slots, a power of two
+	 */
+	private void allocateSlots(int capacity) {
+		this.mKeys = new Object[capacity];
+		this.mHashes = new int[capacity];
+		this.mHeads = new int[capacity];
+		this.mTails = new int[capacity];
+		Arrays.fill(this.mHeads, NONE);
+	}
+
+	/**
+	 * Places all keys again in a new set of slots.
+	 *
+	 * @param capacity the number of slots, a power of two
+	 */
+	private void rehash(int capacity) {
+		Object[] keys = this.mKeys;
+		int[] hashes = this.mHashes;
+		int[] heads = this.mHeads;
+		int[] tails = this.mTails;
+		this.allocateSlots(capacity);
+		int mask = this.mHeads.length - 1;
+		for (int i = 0; i < heads.length; i++) {
+			if (heads[i] != NONE) {
+				int slot = this.home(hashes[i], mask);
+				while (this.mHeads[slot] != NONE) {
+					slot = (slot + 1) & mask;
+				}
+				this.mKeys[slot] = keys[i];
+				this.mHashes[slot] = hashes[i];
+				this.mHeads[slot] = heads[i];
+				this.mTails[slot] = tails[i];
+			}
+		}
+	}
+}
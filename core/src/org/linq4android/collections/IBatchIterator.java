@@ -0,0 +1,41 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.Iterator;
+
+/**
+ * An {@code Iterator<T>} which can also hand out several elements per call.
+ * Operators implementing it pass whole chunks through a pipeline instead of
+ * one element per {@code hasNext}/{@code next} pair; both styles of access
+ * may be mixed on the same iterator.
+ *
+ * @param <T> the generic type
+ */
+interface IBatchIterator<T> extends Iterator<T> {
+
+	/**
+	 * Copies the following elements into the start of specified buffer.
+	 *
+	 * @param buffer the buffer to fill from index 0
+	 * @param max the maximum number of elements to copy, not greater than
+	 *            the buffer length
+	 * @return the number of elements copied; 0 only if there are no more
+	 *         elements
+	 */
+	int nextBatch(Object[] buffer, int max);
+}
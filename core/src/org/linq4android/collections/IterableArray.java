@@ -72,7 +72,7 @@ class IterableArray<T> implements Iterable<T>, ICountable
 	/**
 	 * The Class ArrayIterator.
 	 */
-	private class ArrayIterator implements Iterator<T>
+	private class ArrayIterator implements IBatchIterator<T>, IResettable
 	{
 		
 		/** The m index. */
@@ -118,6 +118,25 @@ class IterableArray<T> implements Iterable<T>, ICountable
 			}
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mIndex = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int rs = Math.min(max, this.mSource.length - this.mIndex);
+			System.arraycopy(this.mSource, this.mIndex, buffer, 0, rs);
+			this.mIndex += rs;
+			return rs;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#remove()
 		 */
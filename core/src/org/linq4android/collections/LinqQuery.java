@@ -16,18 +16,37 @@
  */
 package org.linq4android.collections;
 
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.RandomAccess;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.linq4android.dependencies.java7.Objects;
 import org.linq4android.exceptions.DuplicateKeyException;
@@ -42,6 +61,13 @@ import org.linq4android.exceptions.DuplicateKeyException;
  */
 public class LinqQuery<T> implements Iterable<T> {
 
+	/** The executor shared by <code>selectAsync</code> calls without one. */
+	private static ExecutorService sAsyncExecutor;
+
+	/** The class of the lists returned by {@code Arrays.asList}. */
+	private static final Class<?> ARRAYS_LIST_CLASS = Arrays.asList()
+			.getClass();
+
 	/** The m source itr. */
 	private Iterable<T> mSourceItr;
 
@@ -70,6 +96,15 @@ public class LinqQuery<T> implements Iterable<T> {
 		this.mSourceItr = new IterableArray<T>(sourceItr);
 	}
 
+	/**
+	 * Gets the sequence this query iterates.
+	 *
+	 * @return the source
+	 */
+	Iterable<T> getSource() {
+		return this.mSourceItr;
+	}
+
 	/**
 	 * The Interface IRandomAccessor2.
 	 *
@@ -91,6 +126,15 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @return the t
 		 */
 		T get(int index);
+
+		/**
+		 * Copies elements into the start of specified buffer.
+		 *
+		 * @param index the index of the first element to copy
+		 * @param buffer the buffer
+		 * @param count the number of elements to copy
+		 */
+		void copyTo(int index, Object[] buffer, int count);
 	}
 
 	/**
@@ -126,6 +170,14 @@ public class LinqQuery<T> implements Iterable<T> {
 			return this.mSourceList.get(index);
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.Linq.IRandomAccessor2#copyTo(int, java.lang.Object[], int)
+		 */
+		@Override
+		public void copyTo(int index, Object[] buffer, int count) {
+			copyListRange(this.mSourceList, index, buffer, count);
+		}
+
 	}
 
 	/**
@@ -161,6 +213,14 @@ public class LinqQuery<T> implements Iterable<T> {
 			return this.mSource[index];
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.Linq.IRandomAccessor2#copyTo(int, java.lang.Object[], int)
+		 */
+		@Override
+		public void copyTo(int index, Object[] buffer, int count) {
+			System.arraycopy(this.mSource, index, buffer, 0, count);
+		}
+
 	}
 
 	/**
@@ -194,6 +254,218 @@ public class LinqQuery<T> implements Iterable<T> {
 		throw new UnsupportedOperationException();
 	}
 
+	/** The number of elements moved per batch by terminal operations. */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * How many times larger the inner sequence of a hash join has to be
+	 * before the lookup is built from the keys of the outer one.
+	 */
+	private static final int BUILD_SIDE_RATIO = 2;
+
+	/**
+	 * Looks a key up, testing it against a Bloom filter first.
+	 *
+	 * @param <TKey> the generic type
+	 * @param lookup the lookup
+	 * @param filter the filter of the lookup keys, or null
+	 * @param key the key, not null
+	 * @return the index of the first match, or HashLookup.NONE
+	 */
+	static <TKey> int probe(HashLookup<TKey, ?> lookup,
+			BloomPrefilter.Filter filter, TKey key) {
+		if (filter == null) {
+			return lookup.first(key);
+		}
+		int hash = lookup.hash(key);
+		return filter.mightContain(hash) ? lookup.first(key, hash)
+				: HashLookup.NONE;
+	}
+
+	/**
+	 * Gets the number of elements of a source if it is known without
+	 * iterating it.
+	 *
+	 * @param source the source
+	 * @return the number of elements, or -1 if unknown
+	 */
+	static int knownCount(Iterable<?> source) {
+		if (source instanceof Collection<?>) {
+			return ((Collection<?>) source).size();
+		} else if (source instanceof ICountable) {
+			return ((ICountable) source).count();
+		}
+		return -1;
+	}
+
+	/**
+	 * Creates an iterator over specified source which serves batches without
+	 * going through {@code hasNext}/{@code next} when the source is an
+	 * {@code ArrayList} or a list of {@code Arrays.asList}. Other lists keep
+	 * their own iterator, such as the snapshot of a
+	 * {@code CopyOnWriteArrayList}.
+	 *
+	 * @param <E> the generic type
+	 * @param source the source
+	 * @return the iterator
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E> Iterator<E> batchIterator(Iterable<E> source) {
+		if (source.getClass() == ArrayList.class
+				|| source.getClass() == ARRAYS_LIST_CLASS) {
+			return new ListBatchIterator<E>((List<E>) source);
+		}
+		return source.iterator();
+	}
+
+	/**
+	 * Copies the following elements of specified iterator into the start of
+	 * specified buffer, natively if the iterator is an
+	 * {@code IBatchIterator<T>} and one element at a time otherwise.
+	 *
+	 * @param iterator the iterator
+	 * @param buffer the buffer
+	 * @param max the maximum number of elements to copy
+	 * @return the number of elements copied; 0 only if there are no more
+	 *         elements
+	 */
+	private static int nextBatch(Iterator<?> iterator, Object[] buffer, int max) {
+		if (iterator instanceof IBatchIterator<?>) {
+			return ((IBatchIterator<?>) iterator).nextBatch(buffer, max);
+		}
+		int rs = 0;
+		while (rs < max && iterator.hasNext()) {
+			buffer[rs] = iterator.next();
+			rs++;
+		}
+		return rs;
+	}
+
+	/**
+	 * Rewinds specified iterator if it is {@code IResettable}; otherwise
+	 * creates a new iterator over its source.
+	 *
+	 * @param <E> the generic type
+	 * @param iterator the iterator to rewind
+	 * @param source the sequence the iterator was created from
+	 * @return the rewound iterator
+	 */
+	private static <E> Iterator<E> resetIterator(Iterator<E> iterator,
+			Iterable<E> source) {
+		if (iterator instanceof IResettable) {
+			((IResettable) iterator).reset();
+			return iterator;
+		}
+		return batchIterator(source);
+	}
+
+	/**
+	 * Copies a range of specified list into the start of specified buffer.
+	 *
+	 * @param list the list
+	 * @param index the index of the first element to copy
+	 * @param buffer the buffer
+	 * @param count the number of elements to copy
+	 */
+	private static void copyListRange(List<?> list, int index, Object[] buffer,
+			int count) {
+		for (int i = 0; i < count; i++) {
+			buffer[i] = list.get(index + i);
+		}
+	}
+
+	/**
+	 * The Class ListBatchIterator. Reads the list by index; like the iterator
+	 * of {@code ArrayList}, it throws {@code ConcurrentModificationException}
+	 * once the size of the list changes.
+	 *
+	 * @param <E> the generic type
+	 */
+	private static class ListBatchIterator<E> implements IBatchIterator<E>,
+			IResettable {
+
+		/** The m source. */
+		private List<E> mSource;
+
+		/** The m index. */
+		private int mIndex = 0;
+
+		/** The size of the list when the iteration started. */
+		private int mSize;
+
+		/**
+		 * Instantiates a new list batch iterator.
+		 *
+		 * @param source the source
+		 */
+		public ListBatchIterator(List<E> source) {
+			this.mSource = source;
+			this.mSize = source.size();
+		}
+
+		/**
+		 * Checks that the list has not been resized since the iteration
+		 * started.
+		 */
+		private void checkSize() {
+			if (this.mSource.size() != this.mSize) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return this.mIndex < this.mSize;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public E next() {
+			this.checkSize();
+			if (this.mIndex >= this.mSize) {
+				throw new NoSuchElementException();
+			}
+			E rs = this.mSource.get(this.mIndex);
+			this.mIndex++;
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mIndex = 0;
+			this.mSize = this.mSource.size();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			this.checkSize();
+			int rs = Math.min(max, this.mSize - this.mIndex);
+			copyListRange(this.mSource, this.mIndex, buffer, rs);
+			this.mIndex += rs;
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+
 	/**
 	 * Projects each element of a sequence into a new form.
 	 *
@@ -248,7 +520,11 @@ public class LinqQuery<T> implements Iterable<T> {
 	 *
 	 * @param <TResult> the generic type
 	 */
-	private class SelectIterator<TResult> implements Iterator<TResult> {
+	private class SelectIterator<TResult> implements IBatchIterator<TResult>,
+			IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
 
 		/** The m source itr. */
 		private Iterator<T> mSourceItr;
@@ -263,10 +539,19 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param selector the selector
 		 */
 		public SelectIterator(Iterable<T> source, Selector<T, TResult> selector) {
-			this.mSourceItr = source.iterator();
+			this.mSource = source;
+			this.mSourceItr = batchIterator(source);
 			this.mSelector = selector;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mSourceItr = resetIterator(this.mSourceItr, this.mSource);
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#hasNext()
 		 */
@@ -275,6 +560,19 @@ public class LinqQuery<T> implements Iterable<T> {
 			return mSourceItr.hasNext();
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int rs = LinqQuery.nextBatch(this.mSourceItr, buffer, max);
+			for (int i = 0; i < rs; i++) {
+				buffer[i] = this.mSelector.select((T) buffer[i]);
+			}
+			return rs;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#next()
 		 */
@@ -297,111 +595,501 @@ public class LinqQuery<T> implements Iterable<T> {
 	}
 
 	/**
-	 * Returns distinct elements from a sequence by using hash code to compare
-	 * values.
-	 * 
-	 * @return A {@code Query<T>} that contains distinct elements from the
-	 *         source sequence.
+	 * Projects each element of a sequence into a new form, calling the
+	 * selector on background threads. This suits selectors which block on
+	 * I/O: at most <code>maxConcurrency</code> calls are in flight, the source
+	 * is read only as fast as results are consumed, and the results keep the
+	 * source order. Virtual threads are used where the runtime has them,
+	 * otherwise daemon threads which exit when idle, so nothing has to be shut
+	 * down. If the iteration stops early, the calls already submitted still
+	 * run to the end in the background; drain the iterator to wait for them.
+	 *
+	 * @param <TResult> the generic type
+	 * @param selector            A transform {@code Selector<T, TResult>} to apply to each
+	 *            element.
+	 * @param maxConcurrency            The maximum number of selector calls running at once.
+	 * @return A {@code Query<T>} whose elements are the result of invoking the
+	 *         transform function on each element of source.
 	 */
-	public LinqQuery<T> distinct() {
-		HashSet<T> rs = new HashSet<T>();
-		for (T item : this.mSourceItr) {
-			rs.add(item);
-		}
-		return new LinqQuery<T>(rs);
+	public <TResult> LinqQuery<TResult> selectAsync(
+			Selector<T, TResult> selector, int maxConcurrency) {
+		return this.selectAsync(selector, maxConcurrency, null);
 	}
 
 	/**
-	 * Returns distinct elements from a sequence by using a specified
-	 * {@code Comparator<T>} to compare values.
-	 * 
-	 * @param comparator
-	 *            A {@code Comparator<T>} to compare values
-	 * @return A {@code Query<T>}that contains distinct elements from the
-	 *         sequence.
+	 * Projects each element of a sequence into a new form, calling the
+	 * selector on the specified {@code ExecutorService}. At most
+	 * <code>maxConcurrency</code> calls are in flight and the results keep the
+	 * source order. The executor is not shut down by the query. If the
+	 * iteration stops early, the calls already submitted still run to the end;
+	 * drain the iterator to wait for them.
+	 *
+	 * @param <TResult> the generic type
+	 * @param selector            A transform {@code Selector<T, TResult>} to apply to each
+	 *            element.
+	 * @param maxConcurrency            The maximum number of selector calls running at once.
+	 * @param executor            The {@code ExecutorService} running the selector, or
+	 *            <code>null</code> to use a shared default one.
+	 * @return A {@code Query<T>} whose elements are the result of invoking the
+	 *         transform function on each element of source.
 	 */
-	public LinqQuery<T> distinct(Comparator<T> comparator) {
-		TreeSet<T> rs = new TreeSet<T>(comparator);
-		for (T item : this.mSourceItr) {
-			rs.add(item);
+	public <TResult> LinqQuery<TResult> selectAsync(
+			final Selector<T, TResult> selector, final int maxConcurrency,
+			final ExecutorService executor) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency");
 		}
-		return new LinqQuery<T>(rs);
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
 
+			@Override
+			public Iterator<TResult> iterator() {
+				return new SelectAsyncIterator<TResult>(mSourceItr.iterator(),
+						selector, maxConcurrency, executor);
+			}
+		});
 	}
 
 	/**
-	 * Filters a sequence of values based on a predicate.
+	 * Gets the executor used by <code>selectAsync</code> when none is given:
+	 * a virtual thread per task if the runtime supports it, otherwise daemon
+	 * threads which exit after a second idle. Each iteration bounds its own
+	 * calls in flight, so the executor does not; it is never shut down, and
+	 * an abandoned iteration holds no threads once its calls are done.
 	 *
-	 * @param predicate            A {@code Predicate<T>} to test each element for a condition.
-	 * @return An {@code Query<T>} that contains elements from the input
-	 *         sequence that satisfy the condition.
-	 * @throws Exception the exception
+	 * @return the executor service
 	 */
-
-	public LinqQuery<T> where(Predicate<T> predicate) throws Exception {
-		WhereIterable rs = new WhereIterable(this.mSourceItr, predicate);
-		return new LinqQuery<T>(rs);
+	private static synchronized ExecutorService getAsyncExecutor() {
+		if (sAsyncExecutor == null) {
+			try {
+				// Java 21+; looked up reflectively to keep older runtimes
+				// loading
+				sAsyncExecutor = (ExecutorService) Executors.class.getMethod(
+						"newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				sAsyncExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+						1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+						new ThreadFactory() {
+
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread rs = new Thread(r, "linq4android-async");
+								rs.setDaemon(true);
+								return rs;
+							}
+						});
+			}
+		}
+		return sAsyncExecutor;
 	}
 
 	/**
-	 * The Class WhereIterable.
+	 * The Class SelectAsyncIterator. Keeps a window of pending futures in
+	 * source order; a new element is submitted each time one is consumed.
+	 *
+	 * @param <TResult> the generic type
 	 */
-	private class WhereIterable implements Iterable<T> {
+	private class SelectAsyncIterator<TResult> implements Iterator<TResult> {
 
-		/** The m source. */
-		private Iterable<T> mSource;
-		
-		/** The m predicate. */
-		private Predicate<T> mPredicate;
+		/** The m source itr. */
+		private Iterator<T> mSourceItr;
+
+		/** The m selector. */
+		private Selector<T, TResult> mSelector;
+
+		/** The m max concurrency. */
+		private int mMaxConcurrency;
+
+		/** The m executor, or null for the shared one. */
+		private ExecutorService mExecutor;
+
+		/** The futures in flight, in source order. */
+		private ArrayDeque<Future<TResult>> mPending;
 
 		/**
-		 * Instantiates a new where iterable.
+		 * Instantiates a new select async iterator.
 		 *
 		 * @param source the source
-		 * @param predicate the predicate
+		 * @param selector the selector
+		 * @param maxConcurrency the max concurrency
+		 * @param executor the executor, or null
 		 */
-		public WhereIterable(Iterable<T> source, Predicate<T> predicate) {
-			this.mPredicate = predicate;
-			this.mSource = source;
+		public SelectAsyncIterator(Iterator<T> source,
+				Selector<T, TResult> selector, int maxConcurrency,
+				ExecutorService executor) {
+			this.mSourceItr = source;
+			this.mSelector = selector;
+			this.mMaxConcurrency = maxConcurrency;
+			this.mExecutor = executor;
+			this.mPending = new ArrayDeque<Future<TResult>>(maxConcurrency);
 		}
 
-		/* (non-Javadoc)
-		 * @see java.lang.Iterable#iterator()
+		/**
+		 * Submits source elements until the window is full.
 		 */
-		@Override
-		public Iterator<T> iterator() {
-			return new WhereIterator(this.mSource, this.mPredicate);
-		}
-
-	}
-
-	/**
-	 * The Class WhereIterator.
-	 */
-	private class WhereIterator implements Iterator<T> {
-
-		/** The m sourceitr. */
-		private Iterator<T> mSourceitr;
-		
-		/** The m predicate. */
-		private Predicate<T> mPredicate;
-		
-		/** The m current. */
-		private T mCurrent;
+		private void fill() {
+			while (this.mPending.size() < this.mMaxConcurrency
+					&& this.mSourceItr.hasNext()) {
+				if (this.mExecutor == null) {
+					this.mExecutor = getAsyncExecutor();
+				}
+				final T item = this.mSourceItr.next();
+				this.mPending.add(this.mExecutor.submit(new Callable<TResult>() {
 
-		// 0: need To Find Next, 1: return current, 2 : end
-		/** The m state. */
-		private int mState = 0;
+					@Override
+					public TResult call() throws Exception {
+						return mSelector.select(item);
+					}
+				}));
+			}
+		}
 
 		/**
-		 * Instantiates a new where iterator.
-		 *
-		 * @param source the source
-		 * @param predicate the predicate
+		 * Cancels the pending calls.
 		 */
-		public WhereIterator(Iterable<T> source, Predicate<T> predicate) {
-			this.mPredicate = predicate;
-			this.mSourceitr = source.iterator();
+		private void close() {
+			Future<TResult> future;
+			while ((future = this.mPending.poll()) != null) {
+				future.cancel(true);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.fill();
+			return !this.mPending.isEmpty();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public TResult next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				return this.mPending.poll().get();
+			} catch (InterruptedException e) {
+				this.close();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				this.close();
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+
+	/**
+	 * Returns distinct elements from a sequence by using hash code to compare
+	 * values. The sequence is streamed: the first occurrence of every element
+	 * is returned in source order as soon as it is read, so that
+	 * {@code distinct().take(n)} reads only as far as it needs.
+	 * 
+	 * @return A {@code Query<T>} that contains distinct elements from the
+	 *         source sequence.
+	 */
+	public LinqQuery<T> distinct() {
+		return new LinqQuery<T>(new DistinctIterable<T>(this.mSourceItr, null));
+	}
+
+	/**
+	 * Returns distinct elements from a sequence by using a specified
+	 * {@code Comparator<T>} to compare values.
+	 * 
+	 * @param comparator
+	 *            A {@code Comparator<T>} to compare values
+	 * @return A {@code Query<T>}that contains distinct elements from the
+	 *         sequence.
+	 */
+	public LinqQuery<T> distinct(Comparator<T> comparator) {
+		TreeSet<T> rs = new TreeSet<T>(comparator);
+		for (T item : this.mSourceItr) {
+			rs.add(item);
+		}
+		return new LinqQuery<T>(rs);
+
+	}
+
+	/**
+	 * Returns the elements of a sequence with distinct keys, by using hash
+	 * code to compare keys. The sequence is streamed, and the first element
+	 * of every key is returned in source order; only the keys are kept.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key for each
+	 *            element.
+	 * @return A {@code Query<T>} that contains the first element of every key.
+	 */
+	public <TKey> LinqQuery<T> distinctBy(Selector<T, TKey> keySelector) {
+		return new LinqQuery<T>(new DistinctIterable<TKey>(this.mSourceItr,
+				keySelector));
+	}
+
+	/**
+	 * The Class DistinctIterable.
+	 *
+	 * @param <TKey> the generic type
+	 */
+	private class DistinctIterable<TKey> implements Iterable<T> {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+
+		/** The m key selector, or null to compare the elements. */
+		private Selector<T, TKey> mKeySelector;
+
+		/**
+		 * Instantiates a new distinct iterable.
+		 *
+		 * @param source the source
+		 * @param keySelector the key selector, or null
+		 */
+		public DistinctIterable(Iterable<T> source,
+				Selector<T, TKey> keySelector) {
+			this.mSource = source;
+			this.mKeySelector = keySelector;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			return new DistinctIterator<TKey>(this.mSource, this.mKeySelector);
+		}
+	}
+
+	/**
+	 * The Class DistinctIterator.
+	 *
+	 * @param <TKey> the generic type
+	 */
+	private class DistinctIterator<TKey> implements Iterator<T>, IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+
+		/** The m sourceitr. */
+		private Iterator<T> mSourceitr;
+
+		/** The m key selector, or null to compare the elements. */
+		private Selector<T, TKey> mKeySelector;
+
+		/** The keys returned so far. */
+		private HashSet<Object> mSeen = new HashSet<Object>();
+
+		/** The m current. */
+		private T mCurrent;
+
+		/** Whether the next element has been found. */
+		private boolean mHasNext;
+
+		/**
+		 * Instantiates a new distinct iterator.
+		 *
+		 * @param source the source
+		 * @param keySelector the key selector, or null
+		 */
+		public DistinctIterator(Iterable<T> source,
+				Selector<T, TKey> keySelector) {
+			this.mSource = source;
+			this.mSourceitr = batchIterator(source);
+			this.mKeySelector = keySelector;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mSourceitr = resetIterator(this.mSourceitr, this.mSource);
+			this.mSeen.clear();
+			this.mCurrent = null;
+			this.mHasNext = false;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while (!this.mHasNext && this.mSourceitr.hasNext()) {
+				T item = this.mSourceitr.next();
+				Object key = this.mKeySelector == null ? item
+						: this.mKeySelector.select(item);
+				if (this.mSeen.add(key)) {
+					this.mCurrent = item;
+					this.mHasNext = true;
+				}
+			}
+			return this.mHasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			if (this.hasNext()) {
+				T rs = this.mCurrent;
+				this.mCurrent = null;
+				this.mHasNext = false;
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Filters a sequence of values based on a predicate.
+	 *
+	 * @param predicate            A {@code Predicate<T>} to test each element for a condition.
+	 * @return An {@code Query<T>} that contains elements from the input
+	 *         sequence that satisfy the condition.
+	 * @throws Exception the exception
+	 */
+
+	public LinqQuery<T> where(Predicate<T> predicate) throws Exception {
+		WhereIterable rs = new WhereIterable(this.mSourceItr, predicate);
+		return new LinqQuery<T>(rs);
+	}
+
+	/**
+	 * The Class WhereIterable.
+	 */
+	private class WhereIterable implements Iterable<T> {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+		
+		/** The m predicate. */
+		private Predicate<T> mPredicate;
+
+		/**
+		 * Instantiates a new where iterable.
+		 *
+		 * @param source the source
+		 * @param predicate the predicate
+		 */
+		public WhereIterable(Iterable<T> source, Predicate<T> predicate) {
+			this.mPredicate = predicate;
+			this.mSource = source;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			return new WhereIterator(this.mSource, this.mPredicate);
+		}
+
+	}
+
+	/**
+	 * The Class WhereIterator.
+	 */
+	private class WhereIterator implements IBatchIterator<T>, IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+
+		/** The m sourceitr. */
+		private Iterator<T> mSourceitr;
+		
+		/** The m predicate. */
+		private Predicate<T> mPredicate;
+		
+		/** The m current. */
+		private T mCurrent;
+
+		// 0: need To Find Next, 1: return current, 2 : end
+		/** The m state. */
+		private int mState = 0;
+
+		/**
+		 * Instantiates a new where iterator.
+		 *
+		 * @param source the source
+		 * @param predicate the predicate
+		 */
+		public WhereIterator(Iterable<T> source, Predicate<T> predicate) {
+			this.mPredicate = predicate;
+			this.mSource = source;
+			this.mSourceitr = batchIterator(source);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mSourceitr = resetIterator(this.mSourceitr, this.mSource);
+			this.mCurrent = null;
+			this.mState = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			if (this.mState == 2) {
+				return 0;
+			} else if (this.mState == 1) {
+				buffer[0] = this.mCurrent;
+				this.mCurrent = null;
+				this.mState = 0;
+				return 1;
+			}
+
+			int rs = 0;
+			while (rs == 0) {
+				int n = LinqQuery.nextBatch(this.mSourceitr, buffer, max);
+				if (n == 0) {
+					this.mState = 2;
+					return 0;
+				}
+				// keep the passing elements, compacted at the buffer start
+				for (int i = 0; i < n; i++) {
+					T item = (T) buffer[i];
+					try {
+						if (this.mPredicate.evaluate(item)) {
+							buffer[rs] = item;
+							rs++;
+						}
+					} catch (Exception e) {
+						throw new UnsupportedOperationException(e);
+					}
+				}
+			}
+			return rs;
 		}
 
 		/* (non-Javadoc)
@@ -566,12 +1254,51 @@ public class LinqQuery<T> implements Iterable<T> {
 	 */
 
 	public T lastOrDefault(Predicate<T> predicate) throws Exception {
-		for (T item : this.reverse()) {
-			if (predicate.evaluate(item)) {
-				return item;
+		Iterator<T> descending = this.descendingIterator();
+		if (descending != null) {
+			while (descending.hasNext()) {
+				T item = descending.next();
+				if (predicate.evaluate(item)) {
+					return item;
+				}
+			}
+			return null;
+		}
+
+		// no backward traversal available, keep only the latest match
+		T rs = null;
+		for (T item : this.mSourceItr) {
+			if (predicate.evaluate(item)) {
+				rs = item;
 			}
 		}
+		return rs;
+	}
 
+	/**
+	 * Creates an iterator walking the source from its last element to its
+	 * first one without copying it.
+	 *
+	 * @return the descending iterator, or <code>null</code> if the source
+	 *         can only be traversed forward.
+	 */
+	@SuppressWarnings("unchecked")
+	private Iterator<T> descendingIterator() {
+		if (this.mSourceItr instanceof IterableArray<?>) {
+			return new ArrayReverseIterator(
+					((IterableArray<T>) this.mSourceItr).getSource());
+		} else if (this.mSourceItr instanceof List<?>) {
+			List<T> list = (List<T>) this.mSourceItr;
+			if (list instanceof RandomAccess) {
+				return new ReverseIterator(list);
+			}
+			return new ListIteratorReverseIterator(list.listIterator(list
+					.size()));
+		} else if (this.mSourceItr instanceof Deque<?>) {
+			return ((Deque<T>) this.mSourceItr).descendingIterator();
+		} else if (this.mSourceItr instanceof NavigableSet<?>) {
+			return ((NavigableSet<T>) this.mSourceItr).descendingIterator();
+		}
 		return null;
 	}
 
@@ -720,10 +1447,21 @@ public class LinqQuery<T> implements Iterable<T> {
 	 * @return An {@code ArrayList <T>} that contains elements from the
 	 *         sequence.
 	 */
+	@SuppressWarnings("unchecked")
 	public ArrayList<T> toArrayList() {
+		if (this.mSourceItr instanceof Collection<?>) {
+			return new ArrayList<T>((Collection<T>) this.mSourceItr);
+		}
+
 		ArrayList<T> rs = new ArrayList<T>();
-		for (T item : this.mSourceItr) {
-			rs.add(item);
+		Iterator<T> iterator = batchIterator(this.mSourceItr);
+		Object[] buffer = new Object[BATCH_SIZE];
+		int n;
+		while ((n = nextBatch(iterator, buffer, BATCH_SIZE)) > 0) {
+			rs.ensureCapacity(rs.size() + n);
+			for (int i = 0; i < n; i++) {
+				rs.add((T) buffer[i]);
+			}
 		}
 		return rs;
 	}
@@ -1096,6 +1834,161 @@ public class LinqQuery<T> implements Iterable<T> {
 		return this.mSourceItr.iterator();
 	}
 
+	/**
+	 * Returns a query which runs on a fork/join pool. Arrays and random access
+	 * lists are split in place; any other sequence is copied into a list
+	 * first.
+	 *
+	 * @return A {@code ParallelQuery<T>} over the sequence.
+	 */
+	public ParallelQuery<T> parallel() {
+		return new ParallelQuery<T>(this.mSourceItr);
+	}
+
+	/**
+	 * Returns a query which keeps its iterator chain between iterations. Once
+	 * an iteration has reached the end of the sequence, the next call to
+	 * {@code iterator()} rewinds and returns the same iterators instead of
+	 * allocating a new iterator per operator. Operators which buffer their
+	 * input, such as <code>orderBy</code>, still allocate on every iteration.
+	 * <p>
+	 * The returned query must only be iterated by the thread which iterated it
+	 * first; when assertions are enabled this is checked on every call to
+	 * {@code iterator()}.
+	 *
+	 * @return A {@code Query<T>} that reuses its iterators.
+	 */
+	public LinqQuery<T> reuseIterators() {
+		return new LinqQuery<T>(new ReusableIterable(this.mSourceItr));
+	}
+
+	/**
+	 * The Class ReusableIterable.
+	 */
+	private class ReusableIterable implements Iterable<T> {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+
+		/** The iterator handed out by the last call to iterator(). */
+		private ReusableIterator mCached;
+
+		/** The thread iterating the query. */
+		private Thread mOwner;
+
+		/**
+		 * Instantiates a new reusable iterable.
+		 *
+		 * @param source the source
+		 */
+		public ReusableIterable(Iterable<T> source) {
+			this.mSource = source;
+		}
+
+		/**
+		 * Checks that the query is iterated by a single thread.
+		 *
+		 * @return true, if the current thread owns the query
+		 */
+		private boolean isOwnerThread() {
+			if (this.mOwner == null) {
+				this.mOwner = Thread.currentThread();
+			}
+			return this.mOwner == Thread.currentThread();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			assert this.isOwnerThread() : "reusable query iterated by more than one thread";
+
+			if (this.mCached != null && this.mCached.mFinished) {
+				this.mCached.reset();
+			} else {
+				// first iteration, or the cached one is nested or was abandoned
+				this.mCached = new ReusableIterator(this.mSource);
+			}
+			return this.mCached;
+		}
+	}
+
+	/**
+	 * The Class ReusableIterator.
+	 */
+	private class ReusableIterator implements IBatchIterator<T>, IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
+
+		/** The m inner. */
+		private Iterator<T> mInner;
+
+		/** Whether the iteration has reached the end. */
+		private boolean mFinished = false;
+
+		/**
+		 * Instantiates a new reusable iterator.
+		 *
+		 * @param source the source
+		 */
+		public ReusableIterator(Iterable<T> source) {
+			this.mSource = source;
+			this.mInner = batchIterator(source);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mInner = resetIterator(this.mInner, this.mSource);
+			this.mFinished = false;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			boolean rs = this.mInner.hasNext();
+			if (!rs) {
+				this.mFinished = true;
+			}
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			return this.mInner.next();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int rs = LinqQuery.nextBatch(this.mInner, buffer, max);
+			if (rs == 0) {
+				this.mFinished = true;
+			}
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+
 	/**
 	 * Groups the elements of a sequence according to a specified key
 	 * {@code Selector<T, TResult>}.
@@ -1151,6 +2044,95 @@ public class LinqQuery<T> implements Iterable<T> {
 				});
 	}
 
+	/**
+	 * Groups the elements of a sequence according to a key of several
+	 * fields. The fields are hashed and compared in place, so a key object is
+	 * created only per group; its key is the unmodifiable list of the field
+	 * values. The groups come in the order their first elements appear.
+	 *
+	 * @param key            The {@code CompositeKey<T>} of each element.
+	 * @return A {@code Query<T>} in where each {@code IGrouping} object
+	 *         contains a sequence of objects and a key.
+	 */
+	public LinqQuery<IGrouping<List<Object>, T>> groupBy(CompositeKey<T> key) {
+		HashLookup<Object[], ListGroup<List<Object>, T>> lookup = new HashLookup<Object[], ListGroup<List<Object>, T>>(
+				CompositeKey.COMPARER);
+		ArrayList<IGrouping<List<Object>, T>> rs = new ArrayList<IGrouping<List<Object>, T>>();
+		Object[] buffer = new Object[key.size()];
+		for (T element : this.mSourceItr) {
+			key.extract(element, buffer);
+			int index = lookup.first(buffer);
+			ListGroup<List<Object>, T> group;
+			if (index == HashLookup.NONE) {
+				Object[] fields = buffer.clone();
+				group = new ListGroup<List<Object>, T>(
+						Collections.unmodifiableList(Arrays.asList(fields)));
+				lookup.add(fields, group);
+				rs.add(group);
+			} else {
+				group = lookup.element(index);
+			}
+			group.add(element);
+		}
+		return new LinqQuery<IGrouping<List<Object>, T>>(rs);
+	}
+
+	/**
+	 * Applies an accumulator function over the sequence. The specified seed
+	 * value is used as the initial accumulator value.
+	 *
+	 * @param <TAccumulate> the generic type
+	 * @param seed            The initial accumulator value.
+	 * @param accumulator            A {@code Joint<T1, T2, TResult>} to be invoked on each
+	 *            element.
+	 * @return The final accumulator value.
+	 * @throws Exception the exception
+	 */
+	public <TAccumulate> TAccumulate aggregate(TAccumulate seed,
+			Joint<TAccumulate, T, TAccumulate> accumulator) throws Exception {
+		TAccumulate rs = seed;
+		for (T item : this.mSourceItr) {
+			rs = accumulator.join(rs, item);
+		}
+		return rs;
+	}
+
+	/**
+	 * Applies an accumulator function over the sequence and transforms the
+	 * final accumulator value by specified {@code Selector<T, TResult>}.
+	 *
+	 * @param <TAccumulate> the generic type
+	 * @param <TResult> the generic type
+	 * @param seed            The initial accumulator value.
+	 * @param accumulator            A {@code Joint<T1, T2, TResult>} to be invoked on each
+	 *            element.
+	 * @param resultSelector            A {@code Selector<T, TResult>} to transform the final
+	 *            accumulator value into the result value.
+	 * @return The transformed final accumulator value.
+	 * @throws Exception the exception
+	 */
+	public <TAccumulate, TResult> TResult aggregate(TAccumulate seed,
+			Joint<TAccumulate, T, TAccumulate> accumulator,
+			Selector<TAccumulate, TResult> resultSelector) throws Exception {
+		return resultSelector.select(this.aggregate(seed, accumulator));
+	}
+
+	/**
+	 * Computes all aggregates of specified {@code Aggregation<T>} in one pass
+	 * over the sequence.
+	 *
+	 * @param aggregation            The {@code Aggregation<T>} to compute.
+	 * @return The results, in the order the aggregates were added.
+	 * @throws Exception the exception
+	 */
+	public Object[] aggregate(Aggregation<T> aggregation) throws Exception {
+		Object[] rs = aggregation.seed();
+		for (T item : this.mSourceItr) {
+			rs = aggregation.accumulate(rs, item);
+		}
+		return aggregation.finish(rs);
+	}
+
 	/**
 	 * Returns the number of elements in the sequence.
 	 * 
@@ -1164,9 +2146,10 @@ public class LinqQuery<T> implements Iterable<T> {
 		} else {
 			int rs = 0;
 			Iterator<T> iterator = this.iterator();
-			while (iterator.hasNext()) {
-				iterator.next();
-				rs++;
+			Object[] buffer = new Object[BATCH_SIZE];
+			int n;
+			while ((n = nextBatch(iterator, buffer, BATCH_SIZE)) > 0) {
+				rs += n;
 			}
 			return rs;
 		}
@@ -1212,6 +2195,7 @@ public class LinqQuery<T> implements Iterable<T> {
 			for (T element : this.mSourceItr) {
 				rs.add(element);
 			}
+			Collections.reverse(rs);
 			return new LinqQuery<T>(rs);
 		}
 	}
@@ -1245,7 +2229,7 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class ArrayReverseIterator.
 	 */
-	private class ArrayReverseIterator implements Iterator<T> {
+	private class ArrayReverseIterator implements Iterator<T>, IResettable {
 
 		/** The m source. */
 		private T[] mSource;
@@ -1263,6 +2247,14 @@ public class LinqQuery<T> implements Iterable<T> {
 			this.mPosition = this.mSource.length - 1;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mPosition = this.mSource.length - 1;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#hasNext()
 		 */
@@ -1320,7 +2312,7 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class ReverseIterator.
 	 */
-	private class ReverseIterator implements Iterator<T> {
+	private class ReverseIterator implements Iterator<T>, IResettable {
 
 		/** The m source. */
 		private List<T> mSource;
@@ -1338,6 +2330,14 @@ public class LinqQuery<T> implements Iterable<T> {
 			this.mPosition = this.mSource.size() - 1;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mPosition = this.mSource.size() - 1;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#hasNext()
 		 */
@@ -1366,6 +2366,49 @@ public class LinqQuery<T> implements Iterable<T> {
 		}
 	}
 
+	/**
+	 * The Class ListIteratorReverseIterator.
+	 */
+	private class ListIteratorReverseIterator implements Iterator<T> {
+
+		/** The m source. */
+		private ListIterator<T> mSource;
+
+		/**
+		 * Instantiates a new list iterator reverse iterator.
+		 *
+		 * @param source the list iterator positioned after the last element
+		 */
+		public ListIteratorReverseIterator(ListIterator<T> source) {
+			this.mSource = source;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return this.mSource.hasPrevious();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			return this.mSource.previous();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+
 	/**
 	 * Returns a specified number of contiguous elements from the start of a
 	 * sequence.
@@ -1414,7 +2457,10 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class TakeIterator.
 	 */
-	private class TakeIterator implements Iterator<T> {
+	private class TakeIterator implements IBatchIterator<T>, IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
 
 		/** The m source itr. */
 		private Iterator<T> mSourceItr;
@@ -1432,10 +2478,35 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param take the take
 		 */
 		public TakeIterator(Iterable<T> source, int take) {
-			this.mSourceItr = source.iterator();
+			this.mSource = source;
+			this.mSourceItr = batchIterator(source);
 			this.mTake = take;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mSourceItr = resetIterator(this.mSourceItr, this.mSource);
+			this.mPosition = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int remains = this.mTake - this.mPosition;
+			if (remains <= 0) {
+				return 0;
+			}
+			int rs = LinqQuery.nextBatch(this.mSourceItr, buffer,
+					Math.min(max, remains));
+			this.mPosition += rs;
+			return rs;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#hasNext()
 		 */
@@ -1618,15 +2689,20 @@ public class LinqQuery<T> implements Iterable<T> {
 		 */
 		@Override
 		public Iterator<T> iterator() {
-			return new ContactIterator(this.mItr1.iterator(),
-					this.mItr2.iterator());
+			return new ContactIterator(this.mItr1, this.mItr2);
 		}
 	}
 
 	/**
 	 * The Class ContactIterator.
 	 */
-	private class ContactIterator implements Iterator<T> {
+	private class ContactIterator implements IBatchIterator<T>, IResettable {
+
+		/** The m source1. */
+		private Iterable<T> mSource1;
+
+		/** The m source2. */
+		private Iterable<T> mSource2;
 
 		/** The m itr1. */
 		private Iterator<T> mItr1;
@@ -1643,9 +2719,36 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param s1 the s1
 		 * @param s2 the s2
 		 */
-		public ContactIterator(Iterator<T> s1, Iterator<T> s2) {
-			this.mItr1 = s1;
-			this.mItr2 = s2;
+		public ContactIterator(Iterable<T> s1, Iterable<T> s2) {
+			this.mSource1 = s1;
+			this.mSource2 = s2;
+			this.mItr1 = batchIterator(s1);
+			this.mItr2 = batchIterator(s2);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mItr1 = resetIterator(this.mItr1, this.mSource1);
+			this.mItr2 = resetIterator(this.mItr2, this.mSource2);
+			this.mState = 0;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			if (this.mState == 0) {
+				int rs = LinqQuery.nextBatch(this.mItr1, buffer, max);
+				if (rs > 0) {
+					return rs;
+				}
+				this.mState = 1;
+			}
+			return LinqQuery.nextBatch(this.mItr2, buffer, max);
 		}
 
 		/* (non-Javadoc)
@@ -1940,27 +3043,68 @@ public class LinqQuery<T> implements Iterable<T> {
 	}
 
 	/**
-	 * Produces the set intersection of two sequences by using the specified
-	 * comparator to compare values.
+	 * Produces the set intersection of two sequences by using the default
+	 * equality comparer to compare values, and rejects the elements which
+	 * are not in a Bloom filter of the other sequence before the lookup. As
+	 * with {@code intersect(Iterable)}, null elements are kept if the other
+	 * sequence has one.
 	 *
 	 * @param other            An {@code java.util.Iterable<T>} whose distinct elements that
 	 *            also appear in the first sequence will be returned.
-	 * @param comparator            The {@code Comparator<T>} to compare values.
+	 * @param prefilter            The {@code BloomPrefilter} configuring the filter and
+	 *            collecting its statistics, or <code>null</code> for no filter.
 	 * @return A sequence that contains the elements that form the set
 	 *         intersection of two sequences.
-	 * @throws Exception the exception
 	 */
-	public LinqQuery<T> intersect(Iterable<T> other, Comparator<T> comparator)
-			throws Exception {
-		final TreeSet<T> includes = new TreeSet<T>(comparator);
-		for (T ele : other) {
-			includes.add(ele);
-		}
-
-		return this.where(new Predicate<T>() {
+	public LinqQuery<T> intersectPrefiltered(final Iterable<T> other,
+			final BloomPrefilter prefilter) {
+		return new LinqQuery<T>(new Iterable<T>() {
 
 			@Override
-			public boolean evaluate(T obj) throws Exception {
+			public Iterator<T> iterator() {
+				final HashLookup<T, Object> includes = new HashLookup<T, Object>(
+						null, Math.max(knownCount(other), 16));
+				for (T item : other) {
+					if (includes.first(item) == HashLookup.NONE) {
+						includes.add(item, null);
+					}
+				}
+				final BloomPrefilter.Filter filter = prefilter != null ? prefilter
+						.create(includes.keyHashes()) : null;
+
+				return new WhereIterator(mSourceItr, new Predicate<T>() {
+
+					@Override
+					public boolean evaluate(T obj) {
+						return probe(includes, filter, obj) != HashLookup.NONE;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Produces the set intersection of two sequences by using the specified
+	 * comparator to compare values.
+	 *
+	 * @param other            An {@code java.util.Iterable<T>} whose distinct elements that
+	 *            also appear in the first sequence will be returned.
+	 * @param comparator            The {@code Comparator<T>} to compare values.
+	 * @return A sequence that contains the elements that form the set
+	 *         intersection of two sequences.
+	 * @throws Exception the exception
+	 */
+	public LinqQuery<T> intersect(Iterable<T> other, Comparator<T> comparator)
+			throws Exception {
+		final TreeSet<T> includes = new TreeSet<T>(comparator);
+		for (T ele : other) {
+			includes.add(ele);
+		}
+
+		return this.where(new Predicate<T>() {
+
+			@Override
+			public boolean evaluate(T obj) throws Exception {
 				return includes.contains(obj);
 			}
 		});
@@ -1982,6 +3126,297 @@ public class LinqQuery<T> implements Iterable<T> {
 		return this.intersect(new IterableArray<T>(other), comparator);
 	}
 
+	/**
+	 * Produces the set union of two sequences which are both sorted in
+	 * natural order, by merging them.
+	 *
+	 * @param other            A sequence sorted in natural order whose distinct elements
+	 *            form the second set for union
+	 * @return A {@code Query<T>}that contains the elements from both input
+	 *         sequences, excluding duplicates, in sorted order.
+	 * @see #unionSorted(Iterable, Comparator)
+	 */
+	public LinqQuery<T> unionSorted(Iterable<T> other) {
+		return this.unionSorted(other, new NaturalComparator<T>());
+	}
+
+	/**
+	 * Produces the set union of two sequences which are both sorted by
+	 * specified {@code Comparator<T>}, by merging them. The sequences are
+	 * streamed and nothing is buffered. The result is undefined if a
+	 * sequence is not sorted.
+	 *
+	 * @param other            A sequence sorted by comparator whose distinct elements form
+	 *            the second set for union
+	 * @param comparator            The {@code Comparator<T>} both sequences are sorted by.
+	 * @return A {@code Query<T>}that contains the elements from both input
+	 *         sequences, excluding duplicates, in sorted order.
+	 */
+	public LinqQuery<T> unionSorted(Iterable<T> other, Comparator<T> comparator) {
+		return new LinqQuery<T>(new SortedSetIterable(this.mSourceItr, other,
+				comparator, SortedSetIterable.UNION));
+	}
+
+	/**
+	 * Produces the set difference of two sequences which are both sorted in
+	 * natural order, by merging them.
+	 *
+	 * @param other            A sequence sorted in natural order whose elements that also
+	 *            occur in the source sequence will cause those elements to be
+	 *            removed from the returned sequence.
+	 * @return A sequence that contains the set difference of the elements of
+	 *         two sequences.
+	 * @see #exceptSorted(Iterable, Comparator)
+	 */
+	public LinqQuery<T> exceptSorted(Iterable<T> other) {
+		return this.exceptSorted(other, new NaturalComparator<T>());
+	}
+
+	/**
+	 * Produces the set difference of two sequences which are both sorted by
+	 * specified {@code Comparator<T>}, by merging them. Nothing is buffered,
+	 * and a second sequence which is a random access list or an array is
+	 * skipped through by galloping. The result is undefined if a sequence is
+	 * not sorted.
+	 *
+	 * @param other            A sequence sorted by comparator whose elements that also
+	 *            occur in the source sequence will cause those elements to be
+	 *            removed from the returned sequence.
+	 * @param comparator            The {@code Comparator<T>} both sequences are sorted by.
+	 * @return A sequence that contains the set difference of the elements of
+	 *         two sequences.
+	 */
+	public LinqQuery<T> exceptSorted(Iterable<T> other, Comparator<T> comparator) {
+		return new LinqQuery<T>(new SortedSetIterable(this.mSourceItr, other,
+				comparator, SortedSetIterable.EXCEPT));
+	}
+
+	/**
+	 * Produces the set intersection of two sequences which are both sorted
+	 * in natural order, by merging them.
+	 *
+	 * @param other            A sequence sorted in natural order whose distinct elements
+	 *            that also appear in the first sequence will be returned.
+	 * @return A sequence that contains the elements that form the set
+	 *         intersection of two sequences.
+	 * @see #intersectSorted(Iterable, Comparator)
+	 */
+	public LinqQuery<T> intersectSorted(Iterable<T> other) {
+		return this.intersectSorted(other, new NaturalComparator<T>());
+	}
+
+	/**
+	 * Produces the set intersection of two sequences which are both sorted by
+	 * specified {@code Comparator<T>}, by merging them. Nothing is buffered,
+	 * and either sequence which is a random access list or an array is
+	 * skipped through by galloping, so long runs without a match cost only
+	 * a logarithmic number of comparisons. The result is undefined if a
+	 * sequence is not sorted.
+	 *
+	 * @param other            A sequence sorted by comparator whose distinct elements that
+	 *            also appear in the first sequence will be returned.
+	 * @param comparator            The {@code Comparator<T>} both sequences are sorted by.
+	 * @return A sequence that contains the elements that form the set
+	 *         intersection of two sequences.
+	 */
+	public LinqQuery<T> intersectSorted(Iterable<T> other,
+			Comparator<T> comparator) {
+		return new LinqQuery<T>(new SortedSetIterable(this.mSourceItr, other,
+				comparator, SortedSetIterable.INTERSECT));
+	}
+
+	/**
+	 * The Class SortedSetIterable. Merges two sorted sequences into their
+	 * union, difference or intersection.
+	 */
+	private class SortedSetIterable implements Iterable<T> {
+
+		/** The union, without duplicates. */
+		static final int UNION = 0;
+
+		/** The source elements not in the other sequence. */
+		static final int EXCEPT = 1;
+
+		/** The source elements in the other sequence. */
+		static final int INTERSECT = 2;
+
+		/** The m first. */
+		private Iterable<T> mFirst;
+
+		/** The m second. */
+		private Iterable<T> mSecond;
+
+		/** The m comparator. */
+		private Comparator<T> mComparator;
+
+		/** The operation. */
+		private int mOperation;
+
+		/**
+		 * Instantiates a new sorted set iterable.
+		 *
+		 * @param first the first
+		 * @param second the second
+		 * @param comparator the comparator
+		 * @param operation the operation
+		 */
+		public SortedSetIterable(Iterable<T> first, Iterable<T> second,
+				Comparator<T> comparator, int operation) {
+			this.mFirst = first;
+			this.mSecond = second;
+			this.mComparator = comparator;
+			this.mOperation = operation;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			return new SortedSetIterator(SortedCursor.create(this.mFirst,
+					this.mComparator), SortedCursor.create(this.mSecond,
+					this.mComparator), this.mComparator, this.mOperation);
+		}
+	}
+
+	/**
+	 * The Class SortedSetIterator.
+	 */
+	private class SortedSetIterator implements Iterator<T> {
+
+		/** The m first. */
+		private SortedCursor<T> mFirst;
+
+		/** The m second. */
+		private SortedCursor<T> mSecond;
+
+		/** The m comparator. */
+		private Comparator<T> mComparator;
+
+		/** The operation. */
+		private int mOperation;
+
+		/** Whether the next result has been computed. */
+		private boolean mHasNext;
+
+		/** The m current. */
+		private T mCurrent;
+
+		/**
+		 * Instantiates a new sorted set iterator.
+		 *
+		 * @param first the first
+		 * @param second the second
+		 * @param comparator the comparator
+		 * @param operation the operation
+		 */
+		public SortedSetIterator(SortedCursor<T> first,
+				SortedCursor<T> second, Comparator<T> comparator,
+				int operation) {
+			this.mFirst = first;
+			this.mSecond = second;
+			this.mComparator = comparator;
+			this.mOperation = operation;
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			if (this.mHasNext) {
+				return;
+			}
+			SortedCursor<T> first = this.mFirst;
+			SortedCursor<T> second = this.mSecond;
+			switch (this.mOperation) {
+			case SortedSetIterable.UNION:
+				if (first.hasCurrent()
+						&& (!second.hasCurrent() || this.mComparator.compare(
+								first.current(), second.current()) <= 0)) {
+					this.mCurrent = first.current();
+				} else if (second.hasCurrent()) {
+					this.mCurrent = second.current();
+				} else {
+					return;
+				}
+				// skip the duplicates of the element on both sides
+				while (first.hasCurrent()
+						&& this.mComparator.compare(first.current(),
+								this.mCurrent) == 0) {
+					first.advance();
+				}
+				while (second.hasCurrent()
+						&& this.mComparator.compare(second.current(),
+								this.mCurrent) == 0) {
+					second.advance();
+				}
+				this.mHasNext = true;
+				break;
+			case SortedSetIterable.EXCEPT:
+				while (first.hasCurrent()) {
+					T item = first.current();
+					first.advance();
+					second.skipTo(item);
+					if (!second.hasCurrent()
+							|| this.mComparator.compare(second.current(), item) != 0) {
+						this.mCurrent = item;
+						this.mHasNext = true;
+						return;
+					}
+				}
+				break;
+			default:
+				while (first.hasCurrent() && second.hasCurrent()) {
+					int order = this.mComparator.compare(first.current(),
+							second.current());
+					if (order < 0) {
+						first.skipTo(second.current());
+					} else if (order > 0) {
+						second.skipTo(first.current());
+					} else {
+						this.mCurrent = first.current();
+						first.advance();
+						this.mHasNext = true;
+						return;
+					}
+				}
+				break;
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.tryFindNext();
+			return this.mHasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			if (this.hasNext()) {
+				T rs = this.mCurrent;
+				this.mCurrent = null;
+				this.mHasNext = false;
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
 	/**
 	 * Correlates the elements of two sequences based on matching keys by using
 	 * the default equality comparer.
@@ -2003,8 +3438,8 @@ public class LinqQuery<T> implements Iterable<T> {
 			Selector<T, TKey> outerKeySelector,
 			Selector<TInner, TKey> innerKeySelector,
 			Joint<T, TInner, TResult> joint) {
-		return this.join(new IterableArray<TInner>(inner), outerKeySelector,
-				innerKeySelector, joint, new NaturalComparator<TKey>());
+		return this.hashJoin(new IterableArray<TInner>(inner),
+				outerKeySelector, innerKeySelector, joint, null);
 	}
 
 	/**
@@ -2028,8 +3463,8 @@ public class LinqQuery<T> implements Iterable<T> {
 			Selector<T, TKey> outerKeySelector,
 			Selector<TInner, TKey> innerKeySelector,
 			Joint<T, TInner, TResult> joint) {
-		return this.join(inner, outerKeySelector, innerKeySelector, joint,
-				new NaturalComparator<TKey>());
+		return this.hashJoin(inner, outerKeySelector, innerKeySelector, joint,
+				null);
 	}
 
 	/**
@@ -2046,7 +3481,8 @@ public class LinqQuery<T> implements Iterable<T> {
 	 *            each element of the source sequence.
 	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
 	 *            tow matching elements
-	 * @param comparator            The {@code Comparator<T>} to compare values.
+	 * @param comparator            The {@code Comparator<T>} to compare values, or
+	 *            <code>null</code> to join through a hash lookup.
 	 * @return A {@code Query<T>} that has elements of type TResult that are
 	 *         obtained by performing an inner join on two sequences.
 	 */
@@ -2056,7 +3492,8 @@ public class LinqQuery<T> implements Iterable<T> {
 			Joint<T, TInner, TResult> joint, Comparator<TKey> comparator) {
 		return new LinqQuery<TResult>(new JoinIterable<TInner, TKey, TResult>(
 				this.mSourceItr, new IterableArray<TInner>(inner),
-				outerKeySelector, innerKeySelector, joint, comparator));
+				outerKeySelector, innerKeySelector, joint, comparator, null,
+				null));
 	}
 
 	/**
@@ -2073,7 +3510,8 @@ public class LinqQuery<T> implements Iterable<T> {
 	 *            each element of the source sequence.
 	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
 	 *            tow matching elements
-	 * @param comparator            The {@code Comparator<T>} to compare values.
+	 * @param comparator            The {@code Comparator<T>} to compare values, or
+	 *            <code>null</code> to join through a hash lookup.
 	 * @return A {@code Query<T>} that has elements of type TResult that are
 	 *         obtained by performing an inner join on two sequences.
 	 */
@@ -2083,116 +3521,1611 @@ public class LinqQuery<T> implements Iterable<T> {
 			Joint<T, TInner, TResult> joint, Comparator<TKey> comparator) {
 		return new LinqQuery<TResult>(new JoinIterable<TInner, TKey, TResult>(
 				this.mSourceItr, inner, outerKeySelector, innerKeySelector,
-				joint, comparator));
+				joint, comparator, null, null));
 	}
 
 	/**
-	 * The Class JoinIterable.
+	 * Correlates the elements of two sequences based on matching keys by using
+	 * a hash lookup and the specified {@code EqualityComparer<T>}. The lookup
+	 * is built once from the second sequence and each probe takes constant
+	 * time.
 	 *
 	 * @param <TInner> the generic type
 	 * @param <TKey> the generic type
 	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
 	 */
-	private class JoinIterable<TInner, TKey, TResult> implements
-			Iterable<TResult> {
-		
-		/** The m outer itr. */
-		private Iterable<T> mOuterItr;
-		
-		/** The m inner itr. */
-		private Iterable<TInner> mInnerItr;
-		
-		/** The m outer key selector. */
-		private Selector<T, TKey> mOuterKeySelector;
-		
-		/** The m inner key selector. */
-		private Selector<TInner, TKey> mInnerKeySelector;
-		
-		/** The m joint. */
-		private Joint<T, TInner, TResult> mJoint;
-		
-		/** The m comparator. */
-		private Comparator<TKey> mComparator;
-		
-		/**
-		 * Instantiates a new join iterable.
-		 *
-		 * @param outer the outer
-		 * @param inner the inner
-		 * @param outerKeySelector the outer key selector
-		 * @param innerKeySelector the inner key selector
-		 * @param joint the joint
-		 * @param comparator the comparator
-		 */
-		public JoinIterable(Iterable<T> outer, Iterable<TInner> inner,
-				Selector<T, TKey> outerKeySelector,
-				Selector<TInner, TKey> innerKeySelector,
-				Joint<T, TInner, TResult> joint, Comparator<TKey> comparator) {
-			this.mOuterItr = outer;
-			this.mInnerItr = inner;
-			this.mInnerKeySelector = innerKeySelector;
-			this.mOuterKeySelector = outerKeySelector;
-			this.mJoint = joint;
-			this.mComparator = comparator;
-		}
-
-		/* (non-Javadoc)
-		 * @see java.lang.Iterable#iterator()
-		 */
-		@Override
-		public Iterator<TResult> iterator() {
-			return new JoinIterator<TInner, TKey, TResult>(this.mOuterItr,
-					this.mInnerItr, this.mOuterKeySelector,
-					this.mInnerKeySelector, this.mJoint, this.mComparator);
-		}
-
+	public <TInner, TKey, TResult> LinqQuery<TResult> hashJoin(TInner[] inner,
+			Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer) {
+		return this.hashJoin(new IterableArray<TInner>(inner),
+				outerKeySelector, innerKeySelector, joint, comparer);
 	}
 
 	/**
-	 * The Class JoinIterator.
+	 * Correlates the elements of two sequences based on matching keys by using
+	 * a hash lookup and the specified {@code EqualityComparer<T>}. The lookup
+	 * is built once from the second sequence and each probe takes constant
+	 * time.
 	 *
 	 * @param <TInner> the generic type
 	 * @param <TKey> the generic type
 	 * @param <TResult> the generic type
-	 */
-	private class JoinIterator<TInner, TKey, TResult> implements
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> hashJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer) {
+		return this.hashJoin(inner, outerKeySelector, innerKeySelector,
+				joint, comparer, null);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys by using
+	 * a hash lookup, and rejects the source elements whose key is not in a
+	 * Bloom filter of the lookup keys before the lookup. This pays off when
+	 * most source elements have no match.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @param prefilter            The {@code BloomPrefilter} configuring the filter and
+	 *            collecting its statistics, or <code>null</code> for no filter.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> hashJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer,
+			BloomPrefilter prefilter) {
+		return new LinqQuery<TResult>(new JoinIterable<TInner, TKey, TResult>(
+				this.mSourceItr, inner, outerKeySelector, innerKeySelector,
+				joint, null, comparer, prefilter));
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on keys of several
+	 * fields. The fields are hashed and compared in place, so no key object
+	 * is created per element; only the distinct keys of the second sequence
+	 * are copied into its lookup. Elements having a null field never match.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKey            The {@code CompositeKey<T>} of each element of the source
+	 *            sequence.
+	 * @param innerKey            The {@code CompositeKey<T>} of each element of the second
+	 *            sequence, with as many fields as outerKey.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TResult> LinqQuery<TResult> join(
+			final Iterable<TInner> inner, final CompositeKey<T> outerKey,
+			final CompositeKey<TInner> innerKey,
+			final Joint<T, TInner, TResult> joint) {
+		if (outerKey.size() != innerKey.size()) {
+			throw new IllegalArgumentException(
+					"keys differ in number of fields");
+		}
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				return new CompositeJoinIterator<TInner, TResult>(
+						mSourceItr.iterator(), inner, outerKey, innerKey,
+						joint);
+			}
+		});
+	}
+
+	/**
+	 * The Class CompositeJoinIterator.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class CompositeJoinIterator<TInner, TResult> implements
+			Iterator<TResult> {
+
+		/** The m outer itr. */
+		private Iterator<T> mOuterItr;
+
+		/** The m inner itr. */
+		private Iterable<TInner> mInnerItr;
+
+		/** The m outer key. */
+		private CompositeKey<T> mOuterKey;
+
+		/** The m inner key. */
+		private CompositeKey<TInner> mInnerKey;
+
+		/** The m joint. */
+		private Joint<T, TInner, TResult> mJoint;
+
+		/** The fields of the current key, reused for every element. */
+		private Object[] mBuffer;
+
+		/** The inner lookup, built when iteration starts. */
+		private HashLookup<Object[], TInner> mInnerLookup;
+
+		/** The m current out. */
+		private T mCurrentOut;
+
+		/** The next match in the inner lookup. */
+		private int mCurrentMatch = HashLookup.NONE;
+
+		/** Whether the next result has been computed. */
+		private boolean mHasNext;
+
+		/** The m current result. */
+		private TResult mCurrentResult;
+
+		/**
+		 * Instantiates a new composite join iterator.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKey the outer key
+		 * @param innerKey the inner key
+		 * @param joint the joint
+		 */
+		public CompositeJoinIterator(Iterator<T> outer,
+				Iterable<TInner> inner, CompositeKey<T> outerKey,
+				CompositeKey<TInner> innerKey, Joint<T, TInner, TResult> joint) {
+			this.mOuterItr = outer;
+			this.mInnerItr = inner;
+			this.mOuterKey = outerKey;
+			this.mInnerKey = innerKey;
+			this.mJoint = joint;
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			if (this.mInnerLookup == null) {
+				this.mBuffer = new Object[this.mInnerKey.size()];
+				this.mInnerLookup = new HashLookup<Object[], TInner>(
+						CompositeKey.COMPARER, Math.max(
+								knownCount(this.mInnerItr), 16)) {
+
+					@Override
+					Object[] retain(Object[] key) {
+						return key.clone();
+					}
+				};
+				for (TInner item : this.mInnerItr) {
+					if (this.mInnerKey.extract(item, this.mBuffer)) {
+						this.mInnerLookup.add(this.mBuffer, item);
+					}
+				}
+				this.mInnerItr = null;
+			}
+
+			while (!this.mHasNext) {
+				if (this.mCurrentMatch != HashLookup.NONE) {
+					TInner inner = this.mInnerLookup
+							.element(this.mCurrentMatch);
+					this.mCurrentMatch = this.mInnerLookup
+							.next(this.mCurrentMatch);
+					try {
+						this.mCurrentResult = this.mJoint.join(this.mCurrentOut,
+								inner);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+					this.mHasNext = true;
+				} else if (this.mOuterItr.hasNext()) {
+					this.mCurrentOut = this.mOuterItr.next();
+					this.mCurrentMatch = this.mOuterKey.extract(
+							this.mCurrentOut, this.mBuffer) ? this.mInnerLookup
+							.first(this.mBuffer) : HashLookup.NONE;
+				} else {
+					this.mCurrentOut = null;
+					return;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.tryFindNext();
+			return this.mHasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public TResult next() {
+			if (this.hasNext()) {
+				TResult rs = this.mCurrentResult;
+				this.mCurrentResult = null;
+				this.mHasNext = false;
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Correlates the elements of the sequence with the elements of a prebuilt
+	 * {@code Lookup<TKey, TElement>} having matching keys. The lookup is
+	 * probed once per element and is not rebuilt, so one lookup can serve many
+	 * joins; the results follow the source order. Elements with a null key
+	 * never match.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The {@code Lookup<TKey, TElement>} to join to the source
+	 *            sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> join(
+			final Lookup<TKey, TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Joint<T, TInner, TResult> joint) {
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				return new LookupJoinIterator<TInner, TKey, TResult>(
+						mSourceItr.iterator(), inner, outerKeySelector, joint);
+			}
+		});
+	}
+
+	/**
+	 * The Class LookupJoinIterator.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class LookupJoinIterator<TInner, TKey, TResult> implements
+			Iterator<TResult> {
+
+		/** The m outer itr. */
+		private Iterator<T> mOuterItr;
+
+		/** The m inner. */
+		private Lookup<TKey, TInner> mInner;
+
+		/** The m outer key selector. */
+		private Selector<T, TKey> mOuterKeySelector;
+
+		/** The m joint. */
+		private Joint<T, TInner, TResult> mJoint;
+
+		/** The matches of the current element, copied under the lock. */
+		private ArrayList<TInner> mMatches = new ArrayList<TInner>();
+
+		/** The position of the next match. */
+		private int mMatchPosition;
+
+		/** The m current out. */
+		private T mCurrentOut;
+
+		/** Whether the next result has been computed. */
+		private boolean mHasNext;
+
+		/** The m current result. */
+		private TResult mCurrentResult;
+
+		/**
+		 * Instantiates a new lookup join iterator.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKeySelector the outer key selector
+		 * @param joint the joint
+		 */
+		public LookupJoinIterator(Iterator<T> outer,
+				Lookup<TKey, TInner> inner,
+				Selector<T, TKey> outerKeySelector,
+				Joint<T, TInner, TResult> joint) {
+			this.mOuterItr = outer;
+			this.mInner = inner;
+			this.mOuterKeySelector = outerKeySelector;
+			this.mJoint = joint;
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			while (!this.mHasNext) {
+				if (this.mMatchPosition < this.mMatches.size()) {
+					TInner inner = this.mMatches.get(this.mMatchPosition++);
+					try {
+						this.mCurrentResult = this.mJoint.join(this.mCurrentOut,
+								inner);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+					this.mHasNext = true;
+				} else if (this.mOuterItr.hasNext()) {
+					this.mMatches.clear();
+					this.mMatchPosition = 0;
+					this.mCurrentOut = this.mOuterItr.next();
+					this.mInner.copyTo(
+							this.mOuterKeySelector.select(this.mCurrentOut),
+							this.mMatches);
+				} else {
+					this.mMatches.clear();
+					this.mCurrentOut = null;
+					return;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.tryFindNext();
+			return this.mHasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public TResult next() {
+			if (this.hasNext()) {
+				TResult rs = this.mCurrentResult;
+				this.mCurrentResult = null;
+				this.mHasNext = false;
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The Class JoinIterable.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class JoinIterable<TInner, TKey, TResult> implements
+			Iterable<TResult> {
+		
+		/** The m outer itr. */
+		private Iterable<T> mOuterItr;
+		
+		/** The m inner itr. */
+		private Iterable<TInner> mInnerItr;
+		
+		/** The m outer key selector. */
+		private Selector<T, TKey> mOuterKeySelector;
+		
+		/** The m inner key selector. */
+		private Selector<TInner, TKey> mInnerKeySelector;
+		
+		/** The m joint. */
+		private Joint<T, TInner, TResult> mJoint;
+		
+		/** The m comparator. */
+		private Comparator<TKey> mComparator;
+
+		/** The m comparer. */
+		private EqualityComparer<TKey> mComparer;
+
+		/** The m prefilter. */
+		private BloomPrefilter mPrefilter;
+		
+		/**
+		 * Instantiates a new join iterable.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKeySelector the outer key selector
+		 * @param innerKeySelector the inner key selector
+		 * @param joint the joint
+		 * @param comparator the comparator, or null for a hash join
+		 * @param comparer the comparer of a hash join, or null
+		 * @param prefilter the prefilter of a hash join, or null
+		 */
+		public JoinIterable(Iterable<T> outer, Iterable<TInner> inner,
+				Selector<T, TKey> outerKeySelector,
+				Selector<TInner, TKey> innerKeySelector,
+				Joint<T, TInner, TResult> joint, Comparator<TKey> comparator,
+				EqualityComparer<TKey> comparer, BloomPrefilter prefilter) {
+			this.mOuterItr = outer;
+			this.mInnerItr = inner;
+			this.mInnerKeySelector = innerKeySelector;
+			this.mOuterKeySelector = outerKeySelector;
+			this.mJoint = joint;
+			this.mComparator = comparator;
+			this.mComparer = comparer;
+			this.mPrefilter = prefilter;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<TResult> iterator() {
+			return new JoinIterator<TInner, TKey, TResult>(this.mOuterItr,
+					this.mInnerItr, this.mOuterKeySelector,
+					this.mInnerKeySelector, this.mJoint, this.mComparator,
+					this.mComparer, this.mPrefilter);
+		}
+
+	}
+
+	/**
+	 * The Class JoinIterator.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class JoinIterator<TInner, TKey, TResult> implements
+			Iterator<TResult> {
+
+		/** The m outer. */
+		private Iterable<T> mOuter;
+		
+		/** The m outer itr. */
+		private Iterator<T> mOuterItr;
+		
+		/** The m inner itr. */
+		private Iterable<TInner> mInnerItr;
+		
+		/** The m outer key selector. */
+		private Selector<T, TKey> mOuterKeySelector;
+		
+		/** The m inner key selector. */
+		private Selector<TInner, TKey> mInnerKeySelector;
+		
+		/** The m joint. */
+		private Joint<T, TInner, TResult> mJoint;
+		
+		/** The m comparator. */
+		private Comparator<TKey> mComparator;
+
+		/** The m comparer. */
+		private EqualityComparer<TKey> mComparer;
+
+		/** The m inner maps. */
+		private TreeMap<TKey, IGrouping<TKey, TInner>> mInnerMaps;
+
+		/** The inner lookup of a hash join. */
+		private HashLookup<TKey, TInner> mInnerLookup;
+
+		/** The m prefilter. */
+		private BloomPrefilter mPrefilter;
+
+		/** The filter of the inner keys, or null. */
+		private BloomPrefilter.Filter mFilter;
+
+		/** The next match in the inner lookup. */
+		private int mCurrentMatch = HashLookup.NONE;
+		
+		/** The m current iner itr. */
+		private Iterator<TInner> mCurrentInerItr = null;
+		
+		/** The m current out. */
+		private T mCurrentOut = null;
+
+		/** The m current result. */
+		private TResult mCurrentResult;
+		
+		/** The m state. */
+		private int mState = 0;
+		
+		/**
+		 * Instantiates a new join iterator.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKeySelector the outer key selector
+		 * @param innerKeySelector the inner key selector
+		 * @param joint the joint
+		 * @param comparator the comparator, or null for a hash join
+		 * @param comparer the comparer of a hash join, or null
+		 * @param prefilter the prefilter of a hash join, or null
+		 */
+		public JoinIterator(Iterable<T> outer, Iterable<TInner> inner,
+				Selector<T, TKey> outerKeySelector,
+				Selector<TInner, TKey> innerKeySelector,
+				Joint<T, TInner, TResult> joint, Comparator<TKey> comparator,
+				EqualityComparer<TKey> comparer, BloomPrefilter prefilter) {
+			this.mOuter = outer;
+			this.mOuterItr = outer.iterator();
+			this.mInnerItr = inner;
+			this.mInnerKeySelector = innerKeySelector;
+			this.mOuterKeySelector = outerKeySelector;
+			this.mJoint = joint;
+			this.mComparator = comparator;
+			this.mComparer = comparer;
+			this.mPrefilter = prefilter;
+		}
+
+		/**
+		 * Try find next by probing the inner lookup of a hash join.
+		 */
+		private void tryFindNextHashed() {
+			if (mState == 0) {
+				int outerCount = knownCount(this.mOuter);
+				int innerCount = knownCount(this.mInnerItr);
+				HashLookup<TKey, Object> outerKeys = null;
+				if (outerCount >= 0
+						&& (long) outerCount * BUILD_SIDE_RATIO < innerCount) {
+					// build on the smaller outer side: only the inner
+					// elements matching one of its keys are kept
+					outerKeys = new HashLookup<TKey, Object>(this.mComparer,
+							outerCount);
+					for (T item : this.mOuter) {
+						TKey key = this.mOuterKeySelector.select(item);
+						if (key != null && outerKeys.first(key) == HashLookup.NONE) {
+							outerKeys.add(key, null);
+						}
+					}
+				}
+
+				this.mInnerLookup = new HashLookup<TKey, TInner>(
+						this.mComparer, outerKeys != null ? outerKeys.size()
+								: Math.max(innerCount, 16));
+				for (TInner item : this.mInnerItr) {
+					TKey key = this.mInnerKeySelector.select(item);
+					// null keys never match, as in the comparator join
+					if (key != null
+							&& (outerKeys == null || outerKeys.first(key) != HashLookup.NONE)) {
+						this.mInnerLookup.add(key, item);
+					}
+				}
+				if (this.mPrefilter != null) {
+					this.mFilter = this.mPrefilter.create(this.mInnerLookup
+							.keyHashes());
+				}
+				this.mState = 1;
+			}
+
+			while (mCurrentResult == null && this.mState == 1) {
+				if (this.mCurrentMatch == HashLookup.NONE) {
+					if (this.mOuterItr.hasNext()) {
+						this.mCurrentOut = this.mOuterItr.next();
+						TKey key = this.mOuterKeySelector
+								.select(this.mCurrentOut);
+						this.mCurrentMatch = key == null ? HashLookup.NONE
+								: probe(this.mInnerLookup, this.mFilter, key);
+					} else {
+						this.mState = 2;
+					}
+				} else {
+					TInner inner = this.mInnerLookup
+							.element(this.mCurrentMatch);
+					this.mCurrentMatch = this.mInnerLookup
+							.next(this.mCurrentMatch);
+					try {
+						this.mCurrentResult = this.mJoint.join(this.mCurrentOut,
+								inner);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			if (this.mComparator == null) {
+				this.tryFindNextHashed();
+				return;
+			}
+			if (mState == 0) {
+				this.mInnerMaps = new TreeMap<TKey, IGrouping<TKey, TInner>>(
+						this.mComparator);
+				for (IGrouping<TKey, TInner> group : new LinqQuery<TInner>(
+						this.mInnerItr).groupBy(this.mInnerKeySelector,
+						this.mComparator)) {
+					this.mInnerMaps.put(group.getKey(), group);
+				}
+				this.mState = 1;
+			}
+
+			while (mCurrentResult == null && this.mState == 1) {
+				if (this.mCurrentOut == null) {
+					if (this.mOuterItr.hasNext()) {
+						this.mCurrentOut = this.mOuterItr.next();
+						this.mCurrentInerItr = null;
+					} else {
+						this.mState = 2;
+					}
+
+				} else if (this.mCurrentInerItr == null) {
+					IGrouping<TKey, TInner> g = this.mInnerMaps
+							.get(this.mOuterKeySelector
+									.select(this.mCurrentOut));
+					if (g != null) {
+						this.mCurrentInerItr = g.iterator();
+					} else {
+						this.mCurrentOut = null;
+						this.mCurrentInerItr = null;
+					}
+				} else if (!this.mCurrentInerItr.hasNext()) {
+					this.mCurrentOut = null;
+					this.mCurrentInerItr = null;
+				} else {
+					TInner inner = this.mCurrentInerItr.next();
+					try {
+						this.mCurrentResult = this.mJoint.join(this.mCurrentOut,
+								inner);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.tryFindNext();
+			return this.mState < 2;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public TResult next() {
+			if (this.hasNext()) {
+				TResult rs = this.mCurrentResult;
+				this.mCurrentResult = null;
+
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+
+	}
+
+	/**
+	 * Returns the elements of the sequence whose key matches the key of an
+	 * element of the second sequence. Each element is returned once, however
+	 * many matches it has.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The sequence holding the keys to match.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @return A {@code Query<T>} that contains the matching elements.
+	 */
+	public <TInner, TKey> LinqQuery<T> semiJoin(Iterable<TInner> inner,
+			Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector) {
+		return this.semiJoin(inner, outerKeySelector, innerKeySelector, null,
+				null);
+	}
+
+	/**
+	 * Returns the elements of the sequence whose key matches the key of an
+	 * element of the second sequence, by using the specified
+	 * {@code EqualityComparer<T>}. With a {@code BloomPrefilter}, elements
+	 * whose key is not in a Bloom filter of the second keys are rejected
+	 * without a lookup.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The sequence holding the keys to match.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @param prefilter            The {@code BloomPrefilter} configuring the filter and
+	 *            collecting its statistics, or <code>null</code> for no filter.
+	 * @return A {@code Query<T>} that contains the matching elements.
+	 */
+	public <TInner, TKey> LinqQuery<T> semiJoin(Iterable<TInner> inner,
+			Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			EqualityComparer<TKey> comparer, BloomPrefilter prefilter) {
+		return new LinqQuery<T>(new KeyFilterIterable<TInner, TKey>(
+				this.mSourceItr, inner, outerKeySelector, innerKeySelector,
+				comparer, prefilter, true));
+	}
+
+	/**
+	 * Returns the elements of the sequence whose key matches no key of the
+	 * elements of the second sequence.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The sequence holding the keys to exclude.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @return A {@code Query<T>} that contains the elements without a match.
+	 */
+	public <TInner, TKey> LinqQuery<T> antiJoin(Iterable<TInner> inner,
+			Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector) {
+		return this.antiJoin(inner, outerKeySelector, innerKeySelector, null,
+				null);
+	}
+
+	/**
+	 * Returns the elements of the sequence whose key matches no key of the
+	 * elements of the second sequence, by using the specified
+	 * {@code EqualityComparer<T>}. With a {@code BloomPrefilter}, elements
+	 * whose key is not in a Bloom filter of the second keys are returned
+	 * without a lookup.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The sequence holding the keys to exclude.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @param prefilter            The {@code BloomPrefilter} configuring the filter and
+	 *            collecting its statistics, or <code>null</code> for no filter.
+	 * @return A {@code Query<T>} that contains the elements without a match.
+	 */
+	public <TInner, TKey> LinqQuery<T> antiJoin(Iterable<TInner> inner,
+			Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			EqualityComparer<TKey> comparer, BloomPrefilter prefilter) {
+		return new LinqQuery<T>(new KeyFilterIterable<TInner, TKey>(
+				this.mSourceItr, inner, outerKeySelector, innerKeySelector,
+				comparer, prefilter, false));
+	}
+
+	/**
+	 * Keeps the elements of the sequence whose key is in a prebuilt
+	 * {@code Lookup<TKey, TElement>}, without rebuilding it.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The {@code Lookup<TKey, TElement>} to match against.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @return A {@code Query<T>} that contains the elements with a match.
+	 */
+	public <TInner, TKey> LinqQuery<T> semiJoin(Lookup<TKey, TInner> inner,
+			Selector<T, TKey> outerKeySelector) {
+		return this.whereKey(inner, outerKeySelector, true);
+	}
+
+	/**
+	 * Keeps the elements of the sequence whose key is not in a prebuilt
+	 * {@code Lookup<TKey, TElement>}, without rebuilding it. Elements with a
+	 * null key are kept.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param inner            The {@code Lookup<TKey, TElement>} to match against.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @return A {@code Query<T>} that contains the elements without a match.
+	 */
+	public <TInner, TKey> LinqQuery<T> antiJoin(Lookup<TKey, TInner> inner,
+			Selector<T, TKey> outerKeySelector) {
+		return this.whereKey(inner, outerKeySelector, false);
+	}
+
+	/**
+	 * Filters the sequence by whether the key of each element is in a lookup.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param lookup the lookup
+	 * @param keySelector the key selector
+	 * @param matching true to keep the elements with a match
+	 * @return the query
+	 */
+	private <TInner, TKey> LinqQuery<T> whereKey(
+			final Lookup<TKey, TInner> lookup,
+			final Selector<T, TKey> keySelector, final boolean matching) {
+		return new LinqQuery<T>(new Iterable<T>() {
+
+			@Override
+			public Iterator<T> iterator() {
+				return new WhereIterator(mSourceItr, new Predicate<T>() {
+
+					@Override
+					public boolean evaluate(T obj) {
+						return lookup.containsKey(keySelector.select(obj)) == matching;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * The Class KeyFilterIterable. Keeps the source elements whose key is, or
+	 * is not, among the keys of another sequence.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 */
+	private class KeyFilterIterable<TInner, TKey> implements Iterable<T> {
+
+		/** The m outer itr. */
+		private Iterable<T> mOuterItr;
+
+		/** The m inner itr. */
+		private Iterable<TInner> mInnerItr;
+
+		/** The m outer key selector. */
+		private Selector<T, TKey> mOuterKeySelector;
+
+		/** The m inner key selector. */
+		private Selector<TInner, TKey> mInnerKeySelector;
+
+		/** The m comparer. */
+		private EqualityComparer<TKey> mComparer;
+
+		/** The m prefilter. */
+		private BloomPrefilter mPrefilter;
+
+		/** True to keep the matching elements, false the others. */
+		private boolean mMatching;
+
+		/**
+		 * Instantiates a new key filter iterable.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKeySelector the outer key selector
+		 * @param innerKeySelector the inner key selector
+		 * @param comparer the comparer, or null
+		 * @param prefilter the prefilter, or null
+		 * @param matching true to keep the matching elements
+		 */
+		public KeyFilterIterable(Iterable<T> outer, Iterable<TInner> inner,
+				Selector<T, TKey> outerKeySelector,
+				Selector<TInner, TKey> innerKeySelector,
+				EqualityComparer<TKey> comparer, BloomPrefilter prefilter,
+				boolean matching) {
+			this.mOuterItr = outer;
+			this.mInnerItr = inner;
+			this.mOuterKeySelector = outerKeySelector;
+			this.mInnerKeySelector = innerKeySelector;
+			this.mComparer = comparer;
+			this.mPrefilter = prefilter;
+			this.mMatching = matching;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			final HashLookup<TKey, Object> keys = new HashLookup<TKey, Object>(
+					this.mComparer, Math.max(knownCount(this.mInnerItr), 16));
+			for (TInner item : this.mInnerItr) {
+				TKey key = this.mInnerKeySelector.select(item);
+				if (key != null && keys.first(key) == HashLookup.NONE) {
+					keys.add(key, null);
+				}
+			}
+			final BloomPrefilter.Filter filter = this.mPrefilter != null ? this.mPrefilter
+					.create(keys.keyHashes()) : null;
+			final Selector<T, TKey> keySelector = this.mOuterKeySelector;
+			final boolean matching = this.mMatching;
+
+			return new WhereIterator(this.mOuterItr, new Predicate<T>() {
+
+				@Override
+				public boolean evaluate(T obj) {
+					TKey key = keySelector.select(obj);
+					boolean found = key != null
+							&& probe(keys, filter, key) != HashLookup.NONE;
+					return found == matching;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of the source sequence without a match: they are
+	 * joined with null. A lookup is built from the second sequence and the
+	 * source sequence is streamed, so the results follow the source order.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> leftJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint) {
+		return this.leftJoin(inner, outerKeySelector, innerKeySelector, joint,
+				null);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of the source sequence without a match: they are
+	 * joined with null. A lookup is built from the second sequence and the
+	 * source sequence is streamed, so the results follow the source order.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> leftJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer) {
+		return this.outerJoin(inner, outerKeySelector, innerKeySelector,
+				joint, comparer, true, false);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of the second sequence without a match: null is
+	 * joined with them. A lookup is built from the second sequence and the
+	 * source sequence is streamed; the matched elements of the lookup are
+	 * tracked in a bit set, so the unmatched ones come after the matches,
+	 * in the order of the second sequence, without a second scan.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> rightJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint) {
+		return this.rightJoin(inner, outerKeySelector, innerKeySelector, joint,
+				null);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of the second sequence without a match: null is
+	 * joined with them. A lookup is built from the second sequence and the
+	 * source sequence is streamed; the matched elements of the lookup are
+	 * tracked in a bit set, so the unmatched ones come after the matches,
+	 * in the order of the second sequence, without a second scan.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> rightJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer) {
+		return this.outerJoin(inner, outerKeySelector, innerKeySelector,
+				joint, comparer, false, true);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of both sequences without a match, joined with
+	 * null. The results follow the source order, and the unmatched elements
+	 * of the second sequence come last, in their own order.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> fullOuterJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint) {
+		return this.fullOuterJoin(inner, outerKeySelector, innerKeySelector, joint,
+				null);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, and
+	 * keeps the elements of both sequences without a match, joined with
+	 * null. The results follow the source order, and the unmatched elements
+	 * of the second sequence come last, in their own order.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements, or from an element and null.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an outer join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> fullOuterJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, EqualityComparer<TKey> comparer) {
+		return this.outerJoin(inner, outerKeySelector, innerKeySelector,
+				joint, comparer, true, true);
+	}
+
+	/**
+	 * Creates an outer join.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner the inner
+	 * @param outerKeySelector the outer key selector
+	 * @param innerKeySelector the inner key selector
+	 * @param joint the joint
+	 * @param comparer the comparer, or null
+	 * @param keepOuter whether unmatched outer elements are kept
+	 * @param keepInner whether unmatched inner elements are kept
+	 * @return the query
+	 */
+	private <TInner, TKey, TResult> LinqQuery<TResult> outerJoin(
+			final Iterable<TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Selector<TInner, TKey> innerKeySelector,
+			final Joint<T, TInner, TResult> joint,
+			final EqualityComparer<TKey> comparer, final boolean keepOuter,
+			final boolean keepInner) {
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				return new OuterJoinIterator<TInner, TKey, TResult>(
+						mSourceItr.iterator(), inner, outerKeySelector,
+						innerKeySelector, joint, comparer, keepOuter,
+						keepInner);
+			}
+		});
+	}
+
+	/**
+	 * The Class OuterJoinIterator.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class OuterJoinIterator<TInner, TKey, TResult> implements
+			Iterator<TResult> {
+
+		/** The m outer itr. */
+		private Iterator<T> mOuterItr;
+
+		/** The m inner itr. */
+		private Iterable<TInner> mInnerItr;
+
+		/** The m outer key selector. */
+		private Selector<T, TKey> mOuterKeySelector;
+
+		/** The m inner key selector. */
+		private Selector<TInner, TKey> mInnerKeySelector;
+
+		/** The m joint. */
+		private Joint<T, TInner, TResult> mJoint;
+
+		/** The m comparer. */
+		private EqualityComparer<TKey> mComparer;
+
+		/** Whether unmatched outer elements are kept. */
+		private boolean mKeepOuter;
+
+		/** Whether unmatched inner elements are kept. */
+		private boolean mKeepInner;
+
+		/** The inner lookup. */
+		private HashLookup<TKey, TInner> mInnerLookup;
+
+		/** The inner elements matched so far, by lookup index. */
+		private BitSet mMatched;
+
+		/** The m current out. */
+		private T mCurrentOut;
+
+		/** The next match in the inner lookup. */
+		private int mCurrentMatch = HashLookup.NONE;
+
+		/** The next inner element to check once the outer side is done. */
+		private int mUnmatchedPosition;
+
+		/** Whether the next result has been computed. */
+		private boolean mHasNext;
+
+		/** The m current result. */
+		private TResult mCurrentResult;
+
+		/** The m state. */
+		private int mState = 0;
+
+		/**
+		 * Instantiates a new outer join iterator.
+		 *
+		 * @param outer the outer
+		 * @param inner the inner
+		 * @param outerKeySelector the outer key selector
+		 * @param innerKeySelector the inner key selector
+		 * @param joint the joint
+		 * @param comparer the comparer, or null
+		 * @param keepOuter whether unmatched outer elements are kept
+		 * @param keepInner whether unmatched inner elements are kept
+		 */
+		public OuterJoinIterator(Iterator<T> outer, Iterable<TInner> inner,
+				Selector<T, TKey> outerKeySelector,
+				Selector<TInner, TKey> innerKeySelector,
+				Joint<T, TInner, TResult> joint,
+				EqualityComparer<TKey> comparer, boolean keepOuter,
+				boolean keepInner) {
+			this.mOuterItr = outer;
+			this.mInnerItr = inner;
+			this.mOuterKeySelector = outerKeySelector;
+			this.mInnerKeySelector = innerKeySelector;
+			this.mJoint = joint;
+			this.mComparer = comparer;
+			this.mKeepOuter = keepOuter;
+			this.mKeepInner = keepInner;
+		}
+
+		/**
+		 * Joins two elements into the current result.
+		 *
+		 * @param outer the outer element, or null
+		 * @param inner the inner element, or null
+		 */
+		private void emit(T outer, TInner inner) {
+			try {
+				this.mCurrentResult = this.mJoint.join(outer, inner);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+			this.mHasNext = true;
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			if (this.mState == 0) {
+				this.mInnerLookup = new HashLookup<TKey, TInner>(
+						this.mComparer, Math.max(knownCount(this.mInnerItr),
+								16));
+				// null keys are added too: they never match, but the right
+				// side still has to return them
+				for (TInner item : this.mInnerItr) {
+					this.mInnerLookup.add(this.mInnerKeySelector.select(item),
+							item);
+				}
+				this.mMatched = this.mKeepInner ? new BitSet(
+						this.mInnerLookup.size()) : null;
+				this.mState = 1;
+			}
+
+			while (!this.mHasNext && this.mState == 1) {
+				if (this.mCurrentMatch != HashLookup.NONE) {
+					int match = this.mCurrentMatch;
+					this.mCurrentMatch = this.mInnerLookup.next(match);
+					if (this.mMatched != null) {
+						this.mMatched.set(match);
+					}
+					this.emit(this.mCurrentOut,
+							this.mInnerLookup.element(match));
+				} else if (this.mOuterItr.hasNext()) {
+					this.mCurrentOut = this.mOuterItr.next();
+					TKey key = this.mOuterKeySelector.select(this.mCurrentOut);
+					this.mCurrentMatch = key == null ? HashLookup.NONE
+							: this.mInnerLookup.first(key);
+					if (this.mCurrentMatch == HashLookup.NONE
+							&& this.mKeepOuter) {
+						this.emit(this.mCurrentOut, null);
+					}
+				} else {
+					this.mCurrentOut = null;
+					this.mState = this.mKeepInner ? 2 : 3;
+				}
+			}
+
+			if (!this.mHasNext && this.mState == 2) {
+				int position = this.mMatched
+						.nextClearBit(this.mUnmatchedPosition);
+				if (position < this.mInnerLookup.size()) {
+					this.mUnmatchedPosition = position + 1;
+					this.emit(null, this.mInnerLookup.element(position));
+				} else {
+					this.mState = 3;
+				}
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			this.tryFindNext();
+			return this.mHasNext;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public TResult next() {
+			if (this.hasNext()) {
+				TResult rs = this.mCurrentResult;
+				this.mCurrentResult = null;
+				this.mHasNext = false;
+				return rs;
+			} else {
+				throw new NoSuchElementException();
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, holding
+	 * at most {@code memoryRows} elements of the second sequence in memory.
+	 * Temporary files are created in the default temporary directory. Close
+	 * the returned query once done with it, see
+	 * {@link #graceJoin(Iterable, Selector, Selector, Joint, EqualityComparer, int, File)}.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param memoryRows            The maximum number of elements of the second sequence held
+	 *            in memory.
+	 * @return A {@code CloseableQuery<T>} that has elements of type TResult
+	 *         that are obtained by performing an inner join on two sequences.
+	 * @see #graceJoin(Iterable, Selector, Selector, Joint, EqualityComparer, int, File)
+	 */
+	public <TInner, TKey, TResult> CloseableQuery<TResult> graceJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint, int memoryRows) {
+		return this.graceJoin(inner, outerKeySelector, innerKeySelector,
+				joint, null, memoryRows, null);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys, holding
+	 * at most {@code memoryRows} elements of the second sequence in memory.
+	 * While the second sequence fits, this is a hash join and the results
+	 * come in the order of the source sequence. Otherwise both sequences are
+	 * hash partitioned by key into temporary files, and each pair of
+	 * partitions is joined in memory; partitions still too large are
+	 * partitioned again, and those whose elements all share a key are joined
+	 * a block at a time. The results then come partition by partition, and the
+	 * elements of both sequences have to be {@code Serializable}. Temporary
+	 * files are deleted as their partitions are joined, and all that are left
+	 * when the iteration ends or fails. An iteration which stops early, such
+	 * as the one of {@code first()}, {@code take(n)} or a query built on this
+	 * one, keeps its files until the returned query is closed, so close it in
+	 * a {@code finally} block. Elements with a null key never match.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param comparer            An {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            null to use {@code hashCode} and {@code equals}.
+	 * @param memoryRows            The maximum number of elements of the second sequence held
+	 *            in memory.
+	 * @param tempDirectory            The directory of the temporary files, or null for the
+	 *            default temporary directory.
+	 * @return A {@code CloseableQuery<T>} that has elements of type TResult
+	 *         that are obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TKey, TResult> CloseableQuery<TResult> graceJoin(
+			final Iterable<TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Selector<TInner, TKey> innerKeySelector,
+			final Joint<T, TInner, TResult> joint,
+			final EqualityComparer<TKey> comparer, final int memoryRows,
+			final File tempDirectory) {
+		if (memoryRows < 1) {
+			throw new IllegalArgumentException("memoryRows must be positive");
+		}
+		final Collection<Closeable> openIterators = Collections
+				.synchronizedSet(new HashSet<Closeable>());
+		return new CloseableQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				return new GraceJoinIterator<T, TInner, TKey, TResult>(
+						mSourceItr, inner, outerKeySelector, innerKeySelector,
+						joint, comparer, memoryRows, tempDirectory,
+						openIterators);
+			}
+		}, openIterators);
+	}
+
+	/**
+	 * Correlates the elements of two sequences which are both sorted by key in
+	 * natural order. The sequences are read in lockstep, and only the current
+	 * run of inner elements sharing a key is held in memory.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 * @see #mergeJoin(Iterable, Selector, Selector, Joint, Comparator)
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> mergeJoin(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint) {
+		return this.mergeJoin(inner, outerKeySelector, innerKeySelector,
+				joint, new NaturalComparator<TKey>());
+	}
+
+	/**
+	 * Correlates the elements of two sequences which are both sorted by key
+	 * according to the specified {@code Comparator<T>}. The sequences are
+	 * read in lockstep, and only the current run of inner elements sharing a
+	 * key is held in memory; the results come in the order of the source
+	 * sequence, as with {@code join}. Elements with a null key never match.
+	 * An {@code IllegalStateException} is thrown when a key is found out of
+	 * order.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param comparator            The {@code Comparator<T>} both sequences are sorted by.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> mergeJoin(
+			final Iterable<TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Selector<TInner, TKey> innerKeySelector,
+			final Joint<T, TInner, TResult> joint,
+			final Comparator<TKey> comparator) {
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				return new MergeJoinIterator<TInner, TKey, TResult>(
+						mSourceItr.iterator(), inner.iterator(),
+						outerKeySelector, innerKeySelector, joint, comparator);
+			}
+		});
+	}
+
+	/**
+	 * The Class MergeJoinIterator.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 */
+	private class MergeJoinIterator<TInner, TKey, TResult> implements
 			Iterator<TResult> {
-		
+
 		/** The m outer itr. */
 		private Iterator<T> mOuterItr;
-		
+
 		/** The m inner itr. */
-		private Iterable<TInner> mInnerItr;
-		
+		private Iterator<TInner> mInnerItr;
+
 		/** The m outer key selector. */
 		private Selector<T, TKey> mOuterKeySelector;
-		
+
 		/** The m inner key selector. */
 		private Selector<TInner, TKey> mInnerKeySelector;
-		
+
 		/** The m joint. */
 		private Joint<T, TInner, TResult> mJoint;
-		
+
 		/** The m comparator. */
 		private Comparator<TKey> mComparator;
 
-		/** The m inner maps. */
-		private TreeMap<TKey, IGrouping<TKey, TInner>> mInnerMaps;
-		
-		/** The m current iner itr. */
-		private Iterator<TInner> mCurrentInerItr = null;
-		
+		/** The inner elements sharing the key of the run. */
+		private ArrayList<TInner> mRun = new ArrayList<TInner>();
+
+		/** The key of the run, or null if there is none. */
+		private TKey mRunKey;
+
+		/** The next inner element not in the run. */
+		private TInner mNextInner;
+
+		/** The key of the next inner element, or null if there is none. */
+		private TKey mNextInnerKey;
+
+		/** The key of the last outer element. */
+		private TKey mLastOuterKey;
+
 		/** The m current out. */
-		private T mCurrentOut = null;
+		private T mCurrentOut;
+
+		/** The position of the next match in the run. */
+		private int mRunPosition;
+
+		/** Whether the next result has been computed. */
+		private boolean mHasNext;
 
 		/** The m current result. */
 		private TResult mCurrentResult;
-		
-		/** The m state. */
-		private int mState = 0;
-		
+
 		/**
-		 * Instantiates a new join iterator.
+		 * Instantiates a new merge join iterator.
 		 *
 		 * @param outer the outer
 		 * @param inner the inner
@@ -2201,66 +5134,106 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param joint the joint
 		 * @param comparator the comparator
 		 */
-		public JoinIterator(Iterable<T> outer, Iterable<TInner> inner,
+		public MergeJoinIterator(Iterator<T> outer, Iterator<TInner> inner,
 				Selector<T, TKey> outerKeySelector,
 				Selector<TInner, TKey> innerKeySelector,
 				Joint<T, TInner, TResult> joint, Comparator<TKey> comparator) {
-			this.mOuterItr = outer.iterator();
+			this.mOuterItr = outer;
 			this.mInnerItr = inner;
-			this.mInnerKeySelector = innerKeySelector;
 			this.mOuterKeySelector = outerKeySelector;
+			this.mInnerKeySelector = innerKeySelector;
 			this.mJoint = joint;
 			this.mComparator = comparator;
+			this.mRunPosition = 0;
+			this.advanceInner();
 		}
 
 		/**
-		 * Try find next.
+		 * Reads the next inner element with a key.
 		 */
-		private void tryFindNext() {
-			if (mState == 0) {
-				this.mInnerMaps = new TreeMap<TKey, IGrouping<TKey, TInner>>(
-						this.mComparator);
-				for (IGrouping<TKey, TInner> group : new LinqQuery<TInner>(
-						this.mInnerItr).groupBy(this.mInnerKeySelector,
-						this.mComparator)) {
-					this.mInnerMaps.put(group.getKey(), group);
+		private void advanceInner() {
+			TKey last = this.mNextInnerKey;
+			this.mNextInner = null;
+			this.mNextInnerKey = null;
+			while (this.mInnerItr.hasNext()) {
+				TInner item = this.mInnerItr.next();
+				TKey key = this.mInnerKeySelector.select(item);
+				if (key != null) {
+					if (last != null && this.mComparator.compare(key, last) < 0) {
+						throw new IllegalStateException(
+								"inner sequence is not sorted by key");
+					}
+					this.mNextInner = item;
+					this.mNextInnerKey = key;
+					return;
 				}
-				this.mState = 1;
 			}
+		}
 
-			while (mCurrentResult == null && this.mState == 1) {
-				if (this.mCurrentOut == null) {
-					if (this.mOuterItr.hasNext()) {
-						this.mCurrentOut = this.mOuterItr.next();
-						this.mCurrentInerItr = null;
-					} else {
-						this.mState = 2;
-					}
-
-				} else if (this.mCurrentInerItr == null) {
-					IGrouping<TKey, TInner> g = this.mInnerMaps
-							.get(this.mOuterKeySelector
-									.select(this.mCurrentOut));
-					if (g != null) {
-						this.mCurrentInerItr = g.iterator();
-					} else {
-						this.mCurrentOut = null;
-						this.mCurrentInerItr = null;
-					}
-				} else if (!this.mCurrentInerItr.hasNext()) {
-					this.mCurrentOut = null;
-					this.mCurrentInerItr = null;
-				} else {
-					TInner inner = this.mCurrentInerItr.next();
+		/**
+		 * Loads the run of inner elements matching specified outer key.
+		 *
+		 * @param key the outer key
+		 */
+		private void seekRun(TKey key) {
+			if (this.mRunKey != null
+					&& this.mComparator.compare(key, this.mRunKey) == 0) {
+				// the same key again: replay the run
+				return;
+			}
+			this.mRun.clear();
+			this.mRunKey = null;
+			while (this.mNextInnerKey != null
+					&& this.mComparator.compare(this.mNextInnerKey, key) < 0) {
+				this.advanceInner();
+			}
+			if (this.mNextInnerKey != null
+					&& this.mComparator.compare(this.mNextInnerKey, key) == 0) {
+				this.mRunKey = this.mNextInnerKey;
+				do {
+					this.mRun.add(this.mNextInner);
+					this.advanceInner();
+				} while (this.mNextInnerKey != null
+						&& this.mComparator.compare(this.mNextInnerKey, key) == 0);
+			}
+		}
+
+		/**
+		 * Try find next.
+		 */
+		private void tryFindNext() {
+			while (!this.mHasNext) {
+				if (this.mCurrentOut != null
+						&& this.mRunPosition < this.mRun.size()) {
 					try {
 						this.mCurrentResult = this.mJoint.join(this.mCurrentOut,
-								inner);
+								this.mRun.get(this.mRunPosition++));
 					} catch (Exception e) {
 						throw new IllegalStateException(e);
 					}
+					this.mHasNext = true;
+					return;
 				}
-			}
 
+				this.mCurrentOut = null;
+				if (!this.mOuterItr.hasNext()) {
+					return;
+				}
+				T item = this.mOuterItr.next();
+				TKey key = this.mOuterKeySelector.select(item);
+				if (key == null) {
+					continue;
+				}
+				if (this.mLastOuterKey != null
+						&& this.mComparator.compare(key, this.mLastOuterKey) < 0) {
+					throw new IllegalStateException(
+							"source sequence is not sorted by key");
+				}
+				this.mLastOuterKey = key;
+				this.seekRun(key);
+				this.mCurrentOut = item;
+				this.mRunPosition = 0;
+			}
 		}
 
 		/* (non-Javadoc)
@@ -2269,7 +5242,7 @@ public class LinqQuery<T> implements Iterable<T> {
 		@Override
 		public boolean hasNext() {
 			this.tryFindNext();
-			return this.mState < 2;
+			return this.mHasNext;
 		}
 
 		/* (non-Javadoc)
@@ -2280,7 +5253,7 @@ public class LinqQuery<T> implements Iterable<T> {
 			if (this.hasNext()) {
 				TResult rs = this.mCurrentResult;
 				this.mCurrentResult = null;
-
+				this.mHasNext = false;
 				return rs;
 			} else {
 				throw new NoSuchElementException();
@@ -2295,7 +5268,6 @@ public class LinqQuery<T> implements Iterable<T> {
 			throw new UnsupportedOperationException();
 
 		}
-
 	}
 
 	/**
@@ -2414,6 +5386,221 @@ public class LinqQuery<T> implements Iterable<T> {
 						innerKeySelector, joint, new NaturalComparator<TKey>()));
 	}
 
+	/**
+	 * Correlates every element of the sequence with the group of matching
+	 * elements of the second sequence, in the order of the source sequence.
+	 * Only a hash lookup of the second sequence is built; the source sequence
+	 * is streamed once and is neither grouped nor sorted. Elements without a
+	 * match get an empty group.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create a result element
+	 *            from an element from the first sequence and the group of its
+	 *            matching elements from the second sequence.
+	 * @return A {@code Query<T>}that contains one element of type TResult per
+	 *         element of the source sequence.
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> groupJoinInOrder(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, IGrouping<TKey, TInner>, TResult> joint) {
+		return this.groupJoinInOrder(inner, outerKeySelector,
+				innerKeySelector, joint, null);
+	}
+
+	/**
+	 * Correlates every element of the sequence with the group of matching
+	 * elements of the second sequence, in the order of the source sequence,
+	 * by using the specified {@code EqualityComparer<T>}.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create a result element
+	 *            from an element from the first sequence and the group of its
+	 *            matching elements from the second sequence.
+	 * @param comparer            The {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            <code>null</code> to use their <code>equals</code> and
+	 *            <code>hashCode</code>.
+	 * @return A {@code Query<T>}that contains one element of type TResult per
+	 *         element of the source sequence.
+	 * @see #groupJoinInOrder(Iterable, Selector, Selector, Joint)
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> groupJoinInOrder(
+			final Iterable<TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Selector<TInner, TKey> innerKeySelector,
+			final Joint<T, IGrouping<TKey, TInner>, TResult> joint,
+			final EqualityComparer<TKey> comparer) {
+		return new LinqQuery<TResult>(new Iterable<TResult>() {
+
+			@Override
+			public Iterator<TResult> iterator() {
+				final HashLookup<TKey, TInner> lookup = new HashLookup<TKey, TInner>(
+						comparer, Math.max(knownCount(inner), 16));
+				for (TInner item : inner) {
+					TKey key = innerKeySelector.select(item);
+					if (key != null) {
+						lookup.add(key, item);
+					}
+				}
+				return new SelectIterator<TResult>(mSourceItr,
+						new Selector<T, TResult>() {
+
+							@Override
+							public TResult select(T item) {
+								TKey key = outerKeySelector.select(item);
+								try {
+									return joint.join(item,
+											new LookupGroup<TKey, TInner>(key,
+													lookup, key == null ? HashLookup.NONE
+															: lookup.first(key)));
+								} catch (RuntimeException e) {
+									throw e;
+								} catch (Exception e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						});
+			}
+		});
+	}
+
+	/**
+	 * Correlates each element of the sequence with the group of elements of
+	 * a prebuilt {@code Lookup<TKey, TElement>} having its key, without
+	 * rebuilding the lookup. Every element of the sequence gets a group, which
+	 * is empty if nothing matches; the results follow the source order, and
+	 * each group is a copy which later changes of the lookup do not affect.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The {@code Lookup<TKey, TElement>} to join to the source
+	 *            sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            an element and its group
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing a grouped join on two sequences.
+	 * @see #groupJoinInOrder(Iterable, Selector, Selector, Joint)
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> groupJoinInOrder(
+			final Lookup<TKey, TInner> inner,
+			final Selector<T, TKey> outerKeySelector,
+			final Joint<T, IGrouping<TKey, TInner>, TResult> joint) {
+		return this.select(new Selector<T, TResult>() {
+
+			@Override
+			public TResult select(T item) {
+				TKey key = outerKeySelector.select(item);
+				ListGroup<TKey, TInner> group = new ListGroup<TKey, TInner>(
+						key);
+				inner.copyTo(key, group);
+				try {
+					return joint.join(item, group);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The group of the elements of a {@code HashLookup} sharing a key.
+	 *
+	 * @param <TKey> the generic type
+	 * @param <TElement> the generic type
+	 */
+	private static class LookupGroup<TKey, TElement> implements
+			IGrouping<TKey, TElement> {
+
+		/** The m key. */
+		private TKey mKey;
+
+		/** The m lookup. */
+		private HashLookup<TKey, TElement> mLookup;
+
+		/** The index of the first element, or HashLookup.NONE. */
+		private int mFirst;
+
+		/**
+		 * Instantiates a new lookup group.
+		 *
+		 * @param key the key
+		 * @param lookup the lookup
+		 * @param first the index of the first element, or HashLookup.NONE
+		 */
+		public LookupGroup(TKey key, HashLookup<TKey, TElement> lookup,
+				int first) {
+			this.mKey = key;
+			this.mLookup = lookup;
+			this.mFirst = first;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IGrouping#getKey()
+		 */
+		@Override
+		public TKey getKey() {
+			return this.mKey;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IGrouping#toQuery()
+		 */
+		@Override
+		public LinqQuery<TElement> toQuery() {
+			return new LinqQuery<TElement>(this);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<TElement> iterator() {
+			return new Iterator<TElement>() {
+
+				private int mNext = mFirst;
+
+				@Override
+				public boolean hasNext() {
+					return this.mNext != HashLookup.NONE;
+				}
+
+				@Override
+				public TElement next() {
+					if (this.mNext == HashLookup.NONE) {
+						throw new NoSuchElementException();
+					}
+					TElement rs = mLookup.element(this.mNext);
+					this.mNext = mLookup.next(this.mNext);
+					return rs;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
 	/**
 	 * The Class GroupJoinIterable.
 	 *
@@ -2565,7 +5752,7 @@ public class LinqQuery<T> implements Iterable<T> {
 						this.mCurrent = new IterableGroup<TKey, TResult>(
 								g1.getKey(),
 								new CrossJoinIterable<TInner, TResult>(g1, g2,
-										this.mJoint));
+										this.mJoint, 1));
 					}
 				} else {
 					this.mState = 2;
@@ -2621,11 +5808,12 @@ public class LinqQuery<T> implements Iterable<T> {
 	public <TInner, TResult> LinqQuery<TResult> crossJoin(TInner[] inner,
 			Joint<T, TInner, TResult> joint) {
 		return new LinqQuery<TResult>(new CrossJoinIterable<TInner, TResult>(
-				this.mSourceItr, new IterableArray<TInner>(inner), joint));
+				this.mSourceItr, new IterableArray<TInner>(inner), joint, 1));
 	}
 
 	/**
-	 * Cross join the elements of two sequences.
+	 * Cross join the elements of two sequences. The second sequence is read
+	 * once per iteration, into an array, however often it is repeated.
 	 *
 	 * @param <TInner> the generic type
 	 * @param <TResult> the generic type
@@ -2638,7 +5826,53 @@ public class LinqQuery<T> implements Iterable<T> {
 	public <TInner, TResult> LinqQuery<TResult> crossJoin(Iterable<TInner> inner,
 			Joint<T, TInner, TResult> joint) {
 		return new LinqQuery<TResult>(new CrossJoinIterable<TInner, TResult>(
-				this.mSourceItr, inner, joint));
+				this.mSourceItr, inner, joint, 1));
+	}
+
+	/**
+	 * Cross join the elements of two sequences a block at a time: each block
+	 * of {@code blockSize} elements of the source sequence is paired with
+	 * every element of the second sequence before the next block is read, so
+	 * that the second sequence is swept once per block rather than once per
+	 * element. Within a block the results come ordered by the element of the
+	 * second sequence, then by the element of the source sequence. A block
+	 * size of 1 gives the order of {@code crossJoin(Iterable, Joint)}.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param blockSize            The number of elements of the source sequence per block.
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing a cross join on two sequences.
+	 */
+	public <TInner, TResult> LinqQuery<TResult> crossJoin(Iterable<TInner> inner,
+			Joint<T, TInner, TResult> joint, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+		return new LinqQuery<TResult>(new CrossJoinIterable<TInner, TResult>(
+				this.mSourceItr, inner, joint, blockSize));
+	}
+
+	/**
+	 * Copies a sequence into an array, or returns the array behind it.
+	 *
+	 * @param source the source
+	 * @return the elements
+	 */
+	private static Object[] materialize(Iterable<?> source) {
+		if (source instanceof IterableArray<?>) {
+			return ((IterableArray<?>) source).getSource();
+		} else if (source instanceof Collection<?>) {
+			return ((Collection<?>) source).toArray();
+		}
+		ArrayList<Object> rs = new ArrayList<Object>();
+		for (Object item : source) {
+			rs.add(item);
+		}
+		return rs.toArray();
 	}
 
 	/**
@@ -2658,6 +5892,9 @@ public class LinqQuery<T> implements Iterable<T> {
 		
 		/** The m joint. */
 		private Joint<T, TInner, TResult> mJoint;
+
+		/** The number of source elements per block. */
+		private int mBlockSize;
 		
 		/**
 		 * Instantiates a new cross join iterable.
@@ -2665,12 +5902,14 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param first the first
 		 * @param second the second
 		 * @param joint the joint
+		 * @param blockSize the number of source elements per block
 		 */
 		public CrossJoinIterable(Iterable<T> first, Iterable<TInner> second,
-				Joint<T, TInner, TResult> joint) {
+				Joint<T, TInner, TResult> joint, int blockSize) {
 			this.mFirstItr = first;
 			this.mSecondItr = second;
 			this.mJoint = joint;
+			this.mBlockSize = blockSize;
 		}
 
 		/* (non-Javadoc)
@@ -2679,7 +5918,7 @@ public class LinqQuery<T> implements Iterable<T> {
 		@Override
 		public Iterator<TResult> iterator() {
 			return new CrossJoinIterator<TInner, TResult>(this.mFirstItr,
-					this.mSecondItr, this.mJoint);
+					this.mSecondItr, this.mJoint, this.mBlockSize);
 		}
 	}
 
@@ -2697,21 +5936,24 @@ public class LinqQuery<T> implements Iterable<T> {
 		
 		/** The m second. */
 		private Iterable<TInner> mSecond;
-		
-		/** The m second iterator. */
-		private Iterator<TInner> mSecondIterator;
+
+		/** The elements of the second sequence, read on first use. */
+		private Object[] mInner;
 		
 		/** The m joint. */
 		private Joint<T, TInner, TResult> mJoint;
-		
-		/** The m currentinstance. */
-		private T mCurrentinstance;
-		
-		/** The m current inner. */
-		private TInner mCurrentInner;
-		
-		/** The m state. */
-		private int mState = 0;
+
+		/** The current block of source elements. */
+		private Object[] mBlock;
+
+		/** The number of elements in the current block. */
+		private int mBlockCount;
+
+		/** The position in the current block. */
+		private int mBlockIndex;
+
+		/** The position in the second sequence. */
+		private int mInnerIndex;
 		
 		/**
 		 * Instantiates a new cross join iterator.
@@ -2719,39 +5961,44 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param first the first
 		 * @param second the second
 		 * @param joint the joint
+		 * @param blockSize the number of source elements per block
 		 */
 		public CrossJoinIterator(Iterable<T> first, Iterable<TInner> second,
-				Joint<T, TInner, TResult> joint) {
+				Joint<T, TInner, TResult> joint, int blockSize) {
 			this.mFirst = first.iterator();
 			this.mSecond = second;
 			this.mJoint = joint;
+			this.mBlock = new Object[blockSize];
 		}
 
 		/**
 		 * Try find next.
 		 */
 		private void tryFindNext() {
-			if (this.mState == 0) {
-				this.mSecondIterator = this.mSecond.iterator();
-				this.mState = 1;
+			if (this.mInner == null) {
+				this.mInner = materialize(this.mSecond);
+				this.mSecond = null;
+				this.mInnerIndex = this.mInner.length;
 			}
 
-			while ((this.mCurrentinstance == null || this.mCurrentInner == null)
-					&& mState == 1) {
-				if (this.mCurrentinstance == null) {
-					if (this.mFirst.hasNext()) {
-						this.mCurrentinstance = this.mFirst.next();
-					} else {
-						this.mState = 2;
-					}
-				} else if (this.mCurrentInner == null) {
-					if (this.mSecondIterator.hasNext()) {
-						this.mCurrentInner = this.mSecondIterator.next();
-					} else {
-						this.mCurrentinstance = null;
-						this.mSecondIterator = this.mSecond.iterator();
-					}
-				}
+			if (this.mBlockIndex < this.mBlockCount) {
+				return;
+			}
+			this.mBlockIndex = 0;
+			if (++this.mInnerIndex < this.mInner.length) {
+				return;
+			}
+
+			// start the next block
+			this.mInnerIndex = 0;
+			Arrays.fill(this.mBlock, 0, this.mBlockCount, null);
+			this.mBlockCount = 0;
+			if (this.mInner.length == 0) {
+				return;
+			}
+			while (this.mBlockCount < this.mBlock.length
+					&& this.mFirst.hasNext()) {
+				this.mBlock[this.mBlockCount++] = this.mFirst.next();
 			}
 		}
 
@@ -2761,24 +6008,25 @@ public class LinqQuery<T> implements Iterable<T> {
 		@Override
 		public boolean hasNext() {
 			this.tryFindNext();
-			return this.mState < 2;
+			return this.mBlockIndex < this.mBlockCount;
 		}
 
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#next()
 		 */
+		@SuppressWarnings("unchecked")
 		@Override
 		public TResult next() {
 			if (this.hasNext()) {
 				TResult rs = null;
 				try {
-					rs = this.mJoint.join(this.mCurrentinstance,
-							this.mCurrentInner);
+					rs = this.mJoint.join((T) this.mBlock[this.mBlockIndex],
+							(TInner) this.mInner[this.mInnerIndex]);
 
 				} catch (Exception e) {
 					throw new IllegalStateException(e);
 				}
-				this.mCurrentInner = null;
+				this.mBlockIndex++;
 				return rs;
 			} else {
 				throw new NoSuchElementException();
@@ -2854,7 +6102,10 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class SkipIterator.
 	 */
-	private class SkipIterator implements Iterator<T> {
+	private class SkipIterator implements IBatchIterator<T>, IResettable {
+
+		/** The m source. */
+		private Iterable<T> mSource;
 
 		/** The m is skipped. */
 		private boolean mIsSkipped = false;
@@ -2872,10 +6123,41 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param count the count
 		 */
 		public SkipIterator(Iterable<T> source, int count) {
-			this.mIterator = source.iterator();
+			this.mSource = source;
+			this.mIterator = batchIterator(source);
 			this.mCount = count;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mIterator = resetIterator(this.mIterator, this.mSource);
+			this.mIsSkipped = false;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			if (!this.mIsSkipped) {
+				this.mIsSkipped = true;
+				// skipped elements go through the caller's buffer
+				int remains = this.mCount;
+				while (remains > 0) {
+					int n = LinqQuery.nextBatch(this.mIterator, buffer,
+							Math.min(max, remains));
+					if (n == 0) {
+						break;
+					}
+					remains -= n;
+				}
+			}
+			return LinqQuery.nextBatch(this.mIterator, buffer, max);
+		}
+
 		/**
 		 * Do skip.
 		 */
@@ -2883,7 +6165,7 @@ public class LinqQuery<T> implements Iterable<T> {
 			if (!this.mIsSkipped) {
 				this.mIsSkipped = true;
 				for (int i = 0; i < mCount && this.mIterator.hasNext(); i++) {
-					this.mIterator.hasNext();
+					this.mIterator.next();
 				}
 
 			}
@@ -2954,7 +6236,8 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class RandomSkipIterator.
 	 */
-	private class RandomSkipIterator implements Iterator<T> {
+	private class RandomSkipIterator implements IBatchIterator<T>,
+			IResettable {
 		
 		/**
 		 * Instantiates a new random skip iterator.
@@ -2964,9 +6247,13 @@ public class LinqQuery<T> implements Iterable<T> {
 		 */
 		public RandomSkipIterator(IRandomAccessor2<T> accessor, int count) {
 			this._accessor = accessor;
+			this._count = count;
 			this._pos = count;
 		}
 
+		/** The _count. */
+		private int _count;
+
 		/** The _accessor. */
 		private IRandomAccessor2<T> _accessor;
 
@@ -2981,6 +6268,26 @@ public class LinqQuery<T> implements Iterable<T> {
 			return _pos < this._accessor.getSize();
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this._pos = this._count;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int rs = Math.max(0,
+					Math.min(max, this._accessor.getSize() - this._pos));
+			this._accessor.copyTo(this._pos, buffer, rs);
+			this._pos += rs;
+			return rs;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#next()
 		 */
@@ -3056,7 +6363,7 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class SkipWhileIterator.
 	 */
-	private class SkipWhileIterator implements Iterator<T> {
+	private class SkipWhileIterator implements Iterator<T>, IResettable {
 
 		/**
 		 * Instantiates a new skip while iterator.
@@ -3065,10 +6372,14 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param predicate the predicate
 		 */
 		public SkipWhileIterator(Iterable<T> source, Predicate<T> predicate) {
+			this._sourceItr = source;
 			this._source = source.iterator();
 			this._predicate = predicate;
 		}
 
+		/** The _source itr. */
+		private Iterable<T> _sourceItr;
+
 		/** The _source. */
 		private Iterator<T> _source;
 		
@@ -3081,6 +6392,16 @@ public class LinqQuery<T> implements Iterable<T> {
 		/** The _first. */
 		private T _first;
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this._source = resetIterator(this._source, this._sourceItr);
+			this._state = 0;
+			this._first = null;
+		}
+
 		/**
 		 * Do skip.
 		 *
@@ -3195,7 +6516,7 @@ public class LinqQuery<T> implements Iterable<T> {
 	/**
 	 * The Class TakeWhileIterator.
 	 */
-	private class TakeWhileIterator implements Iterator<T> {
+	private class TakeWhileIterator implements Iterator<T>, IResettable {
 		
 		/**
 		 * Instantiates a new take while iterator.
@@ -3204,10 +6525,14 @@ public class LinqQuery<T> implements Iterable<T> {
 		 * @param predicate the predicate
 		 */
 		public TakeWhileIterator(Iterable<T> source, Predicate<T> predicate) {
+			this.mSource = source;
 			this.mSourceItr = source.iterator();
 			this.mPredicate = predicate;
 		}
 
+		/** The m source. */
+		private Iterable<T> mSource;
+
 		/** The m source itr. */
 		private Iterator<T> mSourceItr;
 		
@@ -3220,6 +6545,16 @@ public class LinqQuery<T> implements Iterable<T> {
 		/** The m has next. */
 		private boolean mHasNext = true;
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mSourceItr = resetIterator(this.mSourceItr, this.mSource);
+			this.mCurrent = null;
+			this.mHasNext = true;
+		}
+
 		/**
 		 * Try get next.
 		 */
@@ -3363,7 +6698,14 @@ public class LinqQuery<T> implements Iterable<T> {
 	 * @param <TOther> the generic type
 	 * @param <TResult> the generic type
 	 */
-	private class ZipIterator<TOther, TResult> implements Iterator<TResult> {
+	private class ZipIterator<TOther, TResult> implements
+			IBatchIterator<TResult>, IResettable {
+
+		/** The m first source. */
+		private Iterable<T> mFirstSource;
+
+		/** The m other source. */
+		private Iterable<TOther> mOtherSource;
 		
 		/** The m first. */
 		private Iterator<T> mFirst;
@@ -3373,6 +6715,9 @@ public class LinqQuery<T> implements Iterable<T> {
 		
 		/** The m joint. */
 		private Joint<T, TOther, TResult> mJoint;
+
+		/** The buffer receiving the batches of the second sequence. */
+		private Object[] mOtherBuffer;
 		
 		/**
 		 * Instantiates a new zip iterator.
@@ -3383,11 +6728,53 @@ public class LinqQuery<T> implements Iterable<T> {
 		 */
 		public ZipIterator(Iterable<T> first, Iterable<TOther> second,
 				Joint<T, TOther, TResult> joint) {
-			this.mFirst = first.iterator();
-			this.mOtherItr = second.iterator();
+			this.mFirstSource = first;
+			this.mOtherSource = second;
+			this.mFirst = batchIterator(first);
+			this.mOtherItr = batchIterator(second);
 			this.mJoint = joint;
 		}
 
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IResettable#reset()
+		 */
+		@Override
+		public void reset() {
+			this.mFirst = resetIterator(this.mFirst, this.mFirstSource);
+			this.mOtherItr = resetIterator(this.mOtherItr, this.mOtherSource);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.IBatchIterator#nextBatch(java.lang.Object[], int)
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public int nextBatch(Object[] buffer, int max) {
+			int rs = LinqQuery.nextBatch(this.mFirst, buffer, max);
+			if (rs == 0) {
+				return 0;
+			}
+			if (this.mOtherBuffer == null || this.mOtherBuffer.length < rs) {
+				this.mOtherBuffer = new Object[buffer.length];
+			}
+			int n = LinqQuery.nextBatch(this.mOtherItr, this.mOtherBuffer, rs);
+			while (n < rs && this.mOtherItr.hasNext()) {
+				this.mOtherBuffer[n] = this.mOtherItr.next();
+				n++;
+			}
+			rs = n;
+			for (int i = 0; i < rs; i++) {
+				try {
+					buffer[i] = this.mJoint.join((T) buffer[i],
+							(TOther) this.mOtherBuffer[i]);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+				this.mOtherBuffer[i] = null;
+			}
+			return rs;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.util.Iterator#hasNext()
 		 */
@@ -3470,4 +6857,37 @@ public class LinqQuery<T> implements Iterable<T> {
 		}
 		return rhsMap;
 	}
+
+	/**
+	 * Creates a {@code Lookup<TKey, TElement>} from an {@code Query<T>}
+	 * according to a specified key {@code Selector}. The lookup can be joined
+	 * against many times without being rebuilt.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            The {@code Selector} to extract key.
+	 * @return A {@code Lookup<TKey, TElement>} of the elements by key.
+	 */
+	public <TKey> Lookup<TKey, T> toLookup(Selector<T, TKey> keySelector) {
+		return this.toLookup(keySelector, null);
+	}
+
+	/**
+	 * Creates a {@code Lookup<TKey, TElement>} from an {@code Query<T>}
+	 * according to a specified key {@code Selector} and
+	 * {@code EqualityComparer<T>}. The lookup can be joined against many times
+	 * without being rebuilt.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            The {@code Selector} to extract key.
+	 * @param comparer            An {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            null to use {@code hashCode} and {@code equals}.
+	 * @return A {@code Lookup<TKey, TElement>} of the elements by key.
+	 */
+	public <TKey> Lookup<TKey, T> toLookup(Selector<T, TKey> keySelector,
+			EqualityComparer<TKey> comparer) {
+		Lookup<TKey, T> rs = new Lookup<TKey, T>(keySelector, comparer,
+				Math.max(knownCount(this.mSourceItr), 16));
+		rs.addAll(this.mSourceItr);
+		return rs;
+	}
 }
@@ -0,0 +1,228 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A hash index of elements by key which is built once and probed by many
+ * joins: pass it to {@link LinqQuery#join(Lookup, Selector, Joint)},
+ * {@link LinqQuery#groupJoinInOrder(Lookup, Selector, Joint)},
+ * {@link LinqQuery#semiJoin(Lookup, Selector)} or
+ * {@link LinqQuery#antiJoin(Lookup, Selector)} instead of a sequence, and no
+ * lookup is built per join. Elements can be added and removed at any time,
+ * also while joins are running on other threads; a join sees the elements of
+ * a key as they are when it probes that key. Elements with a null key are
+ * not indexed, since they never match.
+ *
+ * @author ziaagikian
+ * @param <TKey> The type of keys
+ * @param <TElement> The type of elements
+ */
+public final class Lookup<TKey, TElement> {
+
+	/** The m key selector. */
+	private final Selector<TElement, TKey> mKeySelector;
+
+	/** The m index. */
+	private final HashLookup<TKey, TElement> mIndex;
+
+	/** Guards the index: probes share it, changes own it. */
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Instantiates a new empty lookup which compares keys by equals and
+	 * hashCode.
+	 *
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key of each
+	 *            element.
+	 */
+	public Lookup(Selector<TElement, TKey> keySelector) {
+		this(keySelector, null, 16);
+	}
+
+	/**
+	 * Instantiates a new empty lookup.
+	 *
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key of each
+	 *            element.
+	 * @param comparer            An {@code EqualityComparer<T>} to hash and compare keys, or
+	 *            null to use {@code hashCode} and {@code equals}.
+	 */
+	public Lookup(Selector<TElement, TKey> keySelector,
+			EqualityComparer<TKey> comparer) {
+		this(keySelector, comparer, 16);
+	}
+
+	/**
+	 * Instantiates a new empty lookup for an expected number of elements.
+	 *
+	 * @param keySelector the key selector
+	 * @param comparer the comparer, or null
+	 * @param expectedSize the expected number of elements
+	 */
+	Lookup(Selector<TElement, TKey> keySelector,
+			EqualityComparer<TKey> comparer, int expectedSize) {
+		this.mKeySelector = keySelector;
+		this.mIndex = new HashLookup<TKey, TElement>(comparer, expectedSize);
+	}
+
+	/**
+	 * Adds an element.
+	 *
+	 * @param element the element
+	 */
+	public void add(TElement element) {
+		TKey key = this.mKeySelector.select(element);
+		if (key == null) {
+			return;
+		}
+		this.mLock.writeLock().lock();
+		try {
+			this.mIndex.add(key, element);
+		} finally {
+			this.mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds all elements of a sequence.
+	 *
+	 * @param elements the elements
+	 */
+	public void addAll(Iterable<? extends TElement> elements) {
+		this.mLock.writeLock().lock();
+		try {
+			for (TElement element : elements) {
+				TKey key = this.mKeySelector.select(element);
+				if (key != null) {
+					this.mIndex.add(key, element);
+				}
+			}
+		} finally {
+			this.mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an element equal to specified one. Its key is extracted from
+	 * the specified element, so it must not have changed since it was added.
+	 *
+	 * @param element the element
+	 * @return true if an element was removed
+	 */
+	public boolean remove(TElement element) {
+		TKey key = this.mKeySelector.select(element);
+		if (key == null) {
+			return false;
+		}
+		this.mLock.writeLock().lock();
+		try {
+			return this.mIndex.remove(key, element);
+		} finally {
+			this.mLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the elements having specified key.
+	 *
+	 * @param key the key
+	 * @return A {@code Query<T>} over a copy of the elements, in the order
+	 *         they were added.
+	 */
+	public LinqQuery<TElement> get(TKey key) {
+		ArrayList<TElement> rs = new ArrayList<TElement>();
+		this.copyTo(key, rs);
+		return new LinqQuery<TElement>(rs);
+	}
+
+	/**
+	 * Determines whether an element has specified key.
+	 *
+	 * @param key the key
+	 * @return true if an element has the key
+	 */
+	public boolean containsKey(TKey key) {
+		if (key == null) {
+			return false;
+		}
+		this.mLock.readLock().lock();
+		try {
+			return this.mIndex.first(key) != HashLookup.NONE;
+		} finally {
+			this.mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of elements.
+	 *
+	 * @return the number of elements
+	 */
+	public int size() {
+		this.mLock.readLock().lock();
+		try {
+			return this.mIndex.size();
+		} finally {
+			this.mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of distinct keys.
+	 *
+	 * @return the number of distinct keys
+	 */
+	public int keyCount() {
+		this.mLock.readLock().lock();
+		try {
+			return this.mIndex.keyCount();
+		} finally {
+			this.mLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the elements having specified key to a collection.
+	 *
+	 * @param key the key
+	 * @param target the collection
+	 * @return false if no element has the key
+	 */
+	boolean copyTo(TKey key, Collection<? super TElement> target) {
+		if (key == null) {
+			return false;
+		}
+		this.mLock.readLock().lock();
+		try {
+			int index = this.mIndex.first(key);
+			if (index == HashLookup.NONE) {
+				return false;
+			}
+			do {
+				target.add(this.mIndex.element(index));
+				index = this.mIndex.next(index);
+			} while (index != HashLookup.NONE);
+			return true;
+		} finally {
+			this.mLock.readLock().unlock();
+		}
+	}
+}
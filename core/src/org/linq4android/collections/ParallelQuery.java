@@ -0,0 +1,1314 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import org.linq4android.exceptions.DuplicateKeyException;
+
+/**
+ * Runs a query on a fork/join pool. The source is split into chunks of
+ * consecutive elements; every chunk runs the where and select stages in one
+ * loop on a worker, and the chunk results are concatenated in source order.
+ * <p>
+ * Arrays and random access lists are split in place; other sources are
+ * copied into a list first. Predicates and selectors run concurrently and
+ * must therefore be thread-safe.
+ *
+ * @author ziaagikian
+ * @param <T> The element type of the query
+ */
+public final class ParallelQuery<T> {
+
+	/** The default number of elements processed by one task. */
+	public static final int DEFAULT_THRESHOLD = 8192;
+
+	/** The number of chunks a large source is cut into per pool thread. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/** Filters elements. */
+	private static final int WHERE = 0;
+
+	/** Projects elements. */
+	private static final int SELECT = 1;
+
+	/** The selector returning the element itself. */
+	@SuppressWarnings("rawtypes")
+	private static final Selector IDENTITY = new Selector<Object, Object>() {
+
+		@Override
+		public Object select(Object item) {
+			return item;
+		}
+	};
+
+	/** The pool used when none is specified. */
+	private static ForkJoinPool sDefaultPool;
+
+	/** The source array, or null if the source is a list. */
+	private final Object[] mArray;
+
+	/** The source list, or null if the source is an array. */
+	private final List<?> mList;
+
+	/** The number of source elements. */
+	private final int mSize;
+
+	/** The fused stages in execution order. */
+	private final Stage[] mStages;
+
+	/** The m pool. */
+	private final ForkJoinPool mPool;
+
+	/** The number of elements below which a task is not split. */
+	private final int mThreshold;
+
+	/** Whether results have to follow the source order. */
+	private final boolean mOrdered;
+
+	/**
+	 * Create a new parallel query by specified sequence.
+	 *
+	 * @param source the source
+	 */
+	@SuppressWarnings("unchecked")
+	ParallelQuery(Iterable<T> source) {
+		if (source instanceof IterableArray<?>) {
+			this.mArray = ((IterableArray<T>) source).getSource();
+			this.mList = null;
+			this.mSize = this.mArray.length;
+		} else {
+			if (source instanceof List<?> && source instanceof RandomAccess) {
+				this.mList = (List<T>) source;
+			} else {
+				this.mList = new LinqQuery<T>(source).toArrayList();
+			}
+			this.mArray = null;
+			this.mSize = this.mList.size();
+		}
+		this.mStages = new Stage[0];
+		this.mPool = null;
+		this.mThreshold = DEFAULT_THRESHOLD;
+		this.mOrdered = true;
+	}
+
+	/**
+	 * Instantiates a new parallel query.
+	 *
+	 * @param other the query to copy the source from
+	 * @param stages the stages
+	 * @param pool the pool
+	 * @param threshold the threshold
+	 * @param ordered whether results follow the source order
+	 */
+	private ParallelQuery(ParallelQuery<?> other, Stage[] stages,
+			ForkJoinPool pool, int threshold, boolean ordered) {
+		this.mArray = other.mArray;
+		this.mList = other.mList;
+		this.mSize = other.mSize;
+		this.mStages = stages;
+		this.mPool = pool;
+		this.mThreshold = threshold;
+		this.mOrdered = ordered;
+	}
+
+	/**
+	 * Walks a tree on the pool and creates a parallel query over its nodes.
+	 *
+	 * @param <T> the generic type
+	 * @param ancestor the root of the tree
+	 * @param selector the selector of the children
+	 * @param pool the pool, or null for the default pool
+	 * @return the query over the nodes in pre-order
+	 * @see Queries#parallelFlatternChildren(Object, Selector, ForkJoinPool)
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> ParallelQuery<T> flatternChildren(T ancestor,
+			Selector<T, Iterable<T>> selector, ForkJoinPool pool) {
+		FlatternTask root = new FlatternTask(ancestor, selector);
+		(pool != null ? pool : getDefaultPool()).invoke(root);
+
+		// replace every forked subtree by its nodes, in place
+		ArrayList<T> nodes = new ArrayList<T>();
+		ArrayDeque<Iterator<Object>> stack = new ArrayDeque<Iterator<Object>>();
+		stack.push(root.getRawResult().iterator());
+		while (!stack.isEmpty()) {
+			Iterator<Object> parts = stack.peek();
+			if (!parts.hasNext()) {
+				stack.pop();
+				continue;
+			}
+			Object part = parts.next();
+			if (part instanceof FlatternTask) {
+				// forked subtrees are awaited here rather than by their
+				// parent, so that joins never nest on a worker stack
+				stack.push(((FlatternTask) part).join().iterator());
+			} else {
+				nodes.add((T) part);
+			}
+		}
+
+		ParallelQuery<T> rs = new ParallelQuery<T>(nodes);
+		return pool != null ? rs.withPool(pool) : rs;
+	}
+
+	/**
+	 * Gets the pool shared by parallel queries without a pool of their own.
+	 *
+	 * @return the default pool
+	 */
+	static synchronized ForkJoinPool getDefaultPool() {
+		if (sDefaultPool == null) {
+			sDefaultPool = new ForkJoinPool();
+		}
+		return sDefaultPool;
+	}
+
+	/**
+	 * Runs the query on specified pool.
+	 *
+	 * @param pool the pool
+	 * @return A {@code ParallelQuery<T>} running on the pool.
+	 */
+	public ParallelQuery<T> withPool(ForkJoinPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("pool is null");
+		}
+		return new ParallelQuery<T>(this, this.mStages, pool, this.mThreshold,
+				this.mOrdered);
+	}
+
+	/**
+	 * Sets the minimum number of elements a task processes sequentially
+	 * instead of splitting them further.
+	 *
+	 * @param threshold the number of elements, at least 1
+	 * @return A {@code ParallelQuery<T>} using the threshold.
+	 */
+	public ParallelQuery<T> withThreshold(int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		return new ParallelQuery<T>(this, this.mStages, this.mPool, threshold,
+				this.mOrdered);
+	}
+
+	/**
+	 * Tells the query that the order of its results does not matter. Operators
+	 * then skip the steps restoring source order: <code>join</code> does not
+	 * merge its partitions back into source order, <code>groupBy</code>
+	 * returns its groups unsorted and <code>toMap</code> is filled by all
+	 * workers directly.
+	 *
+	 * @return A {@code ParallelQuery<T>} whose results come in any order.
+	 */
+	public ParallelQuery<T> asUnordered() {
+		return new ParallelQuery<T>(this, this.mStages, this.mPool,
+				this.mThreshold, false);
+	}
+
+	/**
+	 * Checks if the results follow the source order.
+	 *
+	 * @return true, unless {@link #asUnordered()} was called
+	 */
+	public boolean isOrdered() {
+		return this.mOrdered;
+	}
+
+	/**
+	 * Appends a stage.
+	 *
+	 * @param <TResult> the generic type
+	 * @param stage the stage
+	 * @return the new parallel query
+	 */
+	private <TResult> ParallelQuery<TResult> append(Stage stage) {
+		Stage[] stages = new Stage[this.mStages.length + 1];
+		System.arraycopy(this.mStages, 0, stages, 0, this.mStages.length);
+		stages[this.mStages.length] = stage;
+		return new ParallelQuery<TResult>(this, stages, this.mPool,
+				this.mThreshold, this.mOrdered);
+	}
+
+	/**
+	 * Filters a sequence of values based on a predicate.
+	 *
+	 * @param predicate            A {@code Predicate<T>} to test each element for a condition.
+	 * @return A {@code ParallelQuery<T>} that contains elements from the input
+	 *         sequence that satisfy the condition.
+	 */
+	public ParallelQuery<T> where(Predicate<T> predicate) {
+		Stage stage = new Stage(WHERE);
+		stage.predicate = predicate;
+		return this.append(stage);
+	}
+
+	/**
+	 * Projects each element of a sequence into a new form.
+	 *
+	 * @param <TResult> the generic type
+	 * @param selector            A transform {@code Selector<T, TResult>} to apply to each
+	 *            element.
+	 * @return A {@code ParallelQuery<T>} whose elements are the result of
+	 *         invoking the transform function on each element of source.
+	 */
+	public <TResult> ParallelQuery<TResult> select(Selector<T, TResult> selector) {
+		Stage stage = new Stage(SELECT);
+		stage.selector = selector;
+		return this.append(stage);
+	}
+
+	/**
+	 * Creates an {@code ArrayList <T>} holding the results in source order.
+	 *
+	 * @return An {@code ArrayList <T>} that contains elements from the
+	 *         sequence.
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<T> toArrayList() {
+		Object[] chunks = this.runChunks(new ChunkFunction() {
+
+			@Override
+			public Object apply(int from, int to) throws Exception {
+				final ArrayList<Object> rs = new ArrayList<Object>(to - from);
+				forEach(from, to, new ElementConsumer() {
+
+					@Override
+					public void accept(int index, Object element) {
+						rs.add(element);
+					}
+				});
+				return rs;
+			}
+		});
+
+		int size = 0;
+		for (Object chunk : chunks) {
+			size += ((ArrayList<Object>) chunk).size();
+		}
+		ArrayList<T> rs = new ArrayList<T>(size);
+		for (Object chunk : chunks) {
+			rs.addAll((ArrayList<T>) chunk);
+		}
+		return rs;
+	}
+
+	/**
+	 * Groups the elements of a sequence according to a specified key
+	 * {@code Selector<T, TResult>}. Every chunk groups its elements into hash
+	 * partitions, one per pool thread; the partitions are then merged on the
+	 * pool without sharing any map between threads. The elements of a group
+	 * keep their source order. The groups are ordered by the first occurrence
+	 * of their key, whatever the pool size, unless the query is unordered.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key for each
+	 *            element.
+	 * @return A {@code Query<T>} in where each {@code IGrouping} object
+	 *         contains a sequence of objects and a key.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public <TKey> LinqQuery<IGrouping<TKey, T>> groupBy(
+			final Selector<T, TKey> keySelector) {
+		final int partitions = this.getPool().getParallelism();
+		final Object[] chunks = this.runChunks(new ChunkFunction() {
+
+			@Override
+			public Object apply(int from, int to) throws Exception {
+				final HashMap<Object, IndexedGroup>[] rs = new HashMap[partitions];
+				forEach(from, to, new ElementConsumer() {
+
+					@Override
+					public void accept(int index, Object element) {
+						Object key = keySelector.select((T) element);
+						int partition = partitionOf(key, partitions);
+						HashMap<Object, IndexedGroup> map = rs[partition];
+						if (map == null) {
+							map = new HashMap<Object, IndexedGroup>();
+							rs[partition] = map;
+						}
+						IndexedGroup group = map.get(key);
+						if (group == null) {
+							group = new IndexedGroup(key, index);
+							map.put(key, group);
+						}
+						group.add(element);
+					}
+				});
+				return rs;
+			}
+		});
+
+		Object[] merged = this.runTasks(partitions, new TaskFunction() {
+
+			@Override
+			public Object apply(int partition) throws Exception {
+				HashMap<Object, IndexedGroup> rs = null;
+				// chunks are visited in source order, so are group elements
+				for (Object chunk : chunks) {
+					HashMap<Object, IndexedGroup> map = ((HashMap<Object, IndexedGroup>[]) chunk)[partition];
+					if (map == null) {
+						continue;
+					} else if (rs == null) {
+						rs = map;
+						continue;
+					}
+					for (IndexedGroup group : map.values()) {
+						IndexedGroup target = rs.get(group.getKey());
+						if (target == null) {
+							rs.put(group.getKey(), group);
+						} else {
+							target.addAll(group);
+						}
+					}
+				}
+				return rs;
+			}
+		});
+
+		ArrayList<IndexedGroup> groups = new ArrayList<IndexedGroup>();
+		for (Object partition : merged) {
+			if (partition != null) {
+				groups.addAll(((HashMap<Object, IndexedGroup>) partition)
+						.values());
+			}
+		}
+		if (this.mOrdered) {
+			Collections.sort(groups, new Comparator<IndexedGroup>() {
+
+				@Override
+				public int compare(IndexedGroup lhs, IndexedGroup rhs) {
+					return lhs.firstIndex < rhs.firstIndex ? -1
+							: (lhs.firstIndex == rhs.firstIndex ? 0 : 1);
+				}
+			});
+		}
+		return new LinqQuery<IGrouping<TKey, T>>((List) groups);
+	}
+
+	/**
+	 * Gets the hash partition of specified key.
+	 *
+	 * @param key the key
+	 * @param partitions the number of partitions
+	 * @return the partition
+	 */
+	static int partitionOf(Object key, int partitions) {
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		// spread the high bits like java.util.HashMap does
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % partitions;
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys. The
+	 * results follow the order of the source sequence unless the query is
+	 * unordered.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 * @see #join(Iterable, Selector, Selector, Joint, boolean)
+	 */
+	public <TInner, TKey, TResult> LinqQuery<TResult> join(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			Joint<T, TInner, TResult> joint) {
+		return this.join(inner, outerKeySelector, innerKeySelector, joint,
+				this.mOrdered);
+	}
+
+	/**
+	 * Correlates the elements of two sequences based on matching keys. Both
+	 * sequences are hash partitioned by key, one partition per pool thread,
+	 * and every partition builds its lookup from the inner elements and
+	 * probes it with the source elements on its own worker. Keys are compared
+	 * by <code>equals</code> and <code>hashCode</code>, and elements with a
+	 * null key never match.
+	 * <p>
+	 * The matches of a source element follow the order of the second
+	 * sequence. With <code>preserveOrder</code> the results also follow the
+	 * order of the source sequence, at the cost of a merge of the partition
+	 * results; without it they come partition by partition.
+	 *
+	 * @param <TInner> the generic type
+	 * @param <TKey> the generic type
+	 * @param <TResult> the generic type
+	 * @param inner            The sequence to join to the source sequence.
+	 * @param outerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the source sequence.
+	 * @param innerKeySelector            A {@code Selector<T, TResult>} to extract the join key from
+	 *            each element of the second sequence.
+	 * @param joint            A {@code Joint<T1, T2, TResult>} to create result element from
+	 *            tow matching elements
+	 * @param preserveOrder true to return the results in source order
+	 * @return A {@code Query<T>} that has elements of type TResult that are
+	 *         obtained by performing an inner join on two sequences.
+	 */
+	@SuppressWarnings("unchecked")
+	public <TInner, TKey, TResult> LinqQuery<TResult> join(
+			Iterable<TInner> inner, Selector<T, TKey> outerKeySelector,
+			Selector<TInner, TKey> innerKeySelector,
+			final Joint<T, TInner, TResult> joint, final boolean preserveOrder) {
+		ParallelQuery<TInner> innerQuery = new ParallelQuery<TInner>(inner)
+				.withThreshold(this.mThreshold);
+		if (this.mPool != null) {
+			innerQuery = innerQuery.withPool(this.mPool);
+		}
+
+		final int partitions = this.getPool().getParallelism();
+		final Object[] outerChunks = this.partition(outerKeySelector,
+				partitions, true);
+		final Object[] innerChunks = innerQuery.partition(innerKeySelector,
+				partitions, true);
+
+		Object[] outputs = this.runTasks(partitions, new TaskFunction() {
+
+			@Override
+			public Object apply(int partition) throws Exception {
+				HashMap<Object, ArrayList<Object>> lookup = new HashMap<Object, ArrayList<Object>>();
+				for (Object chunk : innerChunks) {
+					Bucket bucket = ((Bucket[]) chunk)[partition];
+					for (int i = 0; bucket != null && i < bucket.size; i++) {
+						ArrayList<Object> matches = lookup.get(bucket.keys[i]);
+						if (matches == null) {
+							matches = new ArrayList<Object>(2);
+							lookup.put(bucket.keys[i], matches);
+						}
+						matches.add(bucket.elements[i]);
+					}
+				}
+
+				Bucket rs = new Bucket(!preserveOrder);
+				for (Object chunk : outerChunks) {
+					Bucket bucket = ((Bucket[]) chunk)[partition];
+					for (int i = 0; bucket != null && i < bucket.size; i++) {
+						ArrayList<Object> matches = lookup.get(bucket.keys[i]);
+						if (matches == null) {
+							continue;
+						}
+						T outer = (T) bucket.elements[i];
+						for (Object match : matches) {
+							rs.add(bucket.indexes != null ? bucket.indexes[i]
+									: 0, null, joint.join(outer, (TInner) match));
+						}
+					}
+				}
+				return rs;
+			}
+		});
+
+		ArrayList<TResult> rs = new ArrayList<TResult>();
+		if (preserveOrder) {
+			mergeByIndex(outputs, (ArrayList<Object>) rs);
+		} else {
+			for (Object output : outputs) {
+				Bucket bucket = (Bucket) output;
+				for (int i = 0; i < bucket.size; i++) {
+					rs.add((TResult) bucket.elements[i]);
+				}
+			}
+		}
+		return new LinqQuery<TResult>(rs);
+	}
+
+	/**
+	 * Splits the elements of every chunk into hash partitions by key.
+	 *
+	 * @param keySelector the key selector
+	 * @param partitions the number of partitions
+	 * @param skipNullKeys true to leave out the elements with a null key,
+	 *            which never match in a join
+	 * @return the {@code Bucket[]} of every chunk, in source order
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Object[] partition(final Selector keySelector, final int partitions,
+			final boolean skipNullKeys) {
+		return this.runChunks(new ChunkFunction() {
+
+			@Override
+			public Object apply(int from, int to) throws Exception {
+				final Bucket[] rs = new Bucket[partitions];
+				// hashes spread evenly, so size for a fair share plus slack
+				final int capacity = (to - from) / partitions
+						+ (to - from) / (partitions * 8);
+				forEach(from, to, new ElementConsumer() {
+
+					@Override
+					public void accept(int index, Object element) {
+						Object key = keySelector.select(element);
+						if (key == null && skipNullKeys) {
+							return;
+						}
+						int partition = partitionOf(key, partitions);
+						Bucket bucket = rs[partition];
+						if (bucket == null) {
+							bucket = new Bucket(false, capacity);
+							rs[partition] = bucket;
+						}
+						bucket.add(index, key, element);
+					}
+				});
+				return rs;
+			}
+		});
+	}
+
+	/**
+	 * Merges buckets whose entries are sorted by source index into one list
+	 * sorted by source index. Each index appears in a single bucket, so the
+	 * entries sharing an index keep their relative order.
+	 *
+	 * @param buckets the buckets
+	 * @param rs the list receiving the elements
+	 */
+	static void mergeByIndex(Object[] buckets, ArrayList<Object> rs) {
+		int size = 0;
+		for (Object bucket : buckets) {
+			size += ((Bucket) bucket).size;
+		}
+		rs.ensureCapacity(size);
+
+		int[] positions = new int[buckets.length];
+		while (true) {
+			int best = -1;
+			int bestIndex = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				Bucket bucket = (Bucket) buckets[i];
+				if (positions[i] < bucket.size
+						&& (best < 0 || bucket.indexes[positions[i]] < bestIndex)) {
+					best = i;
+					bestIndex = bucket.indexes[positions[i]];
+				}
+			}
+			if (best < 0) {
+				return;
+			}
+			// copy the whole run of the chosen index at once
+			Bucket bucket = (Bucket) buckets[best];
+			int position = positions[best];
+			do {
+				rs.add(bucket.elements[position]);
+				position++;
+			} while (position < bucket.size
+					&& bucket.indexes[position] == bestIndex);
+			positions[best] = position;
+		}
+	}
+
+	/**
+	 * Returns distinct elements from the sequence by using hash code to
+	 * compare values. The elements are hash partitioned, one partition per
+	 * pool thread, and every partition removes its duplicates with its own
+	 * set, so no set is shared between threads and no element is compared
+	 * across partitions. The result keeps the first occurrence of every
+	 * element in source order unless the query is unordered, in which case
+	 * the partitions are concatenated.
+	 *
+	 * @return A {@code Query<T>} that contains distinct elements from the
+	 *         source sequence.
+	 */
+	@SuppressWarnings("unchecked")
+	public LinqQuery<T> distinct() {
+		final boolean ordered = this.mOrdered;
+		final int partitions = this.getPool().getParallelism();
+		final Object[] chunks = this.partition(IDENTITY, partitions, false);
+
+		Object[] outputs = this.runTasks(partitions, new TaskFunction() {
+
+			@Override
+			public Object apply(int partition) throws Exception {
+				HashSet<Object> seen = new HashSet<Object>();
+				Bucket rs = new Bucket(!ordered);
+				// chunks are visited in source order, so the first add wins
+				for (Object chunk : chunks) {
+					Bucket bucket = ((Bucket[]) chunk)[partition];
+					for (int i = 0; bucket != null && i < bucket.size; i++) {
+						if (seen.add(bucket.elements[i])) {
+							rs.add(bucket.indexes[i], null, bucket.elements[i]);
+						}
+					}
+				}
+				return rs;
+			}
+		});
+
+		ArrayList<T> rs = new ArrayList<T>();
+		if (ordered) {
+			mergeByIndex(outputs, (ArrayList<Object>) rs);
+		} else {
+			for (Object output : outputs) {
+				Bucket bucket = (Bucket) output;
+				for (int i = 0; i < bucket.size; i++) {
+					rs.add((T) bucket.elements[i]);
+				}
+			}
+		}
+		return new LinqQuery<T>(rs);
+	}
+
+	/**
+	 * Produces the set union of the sequence and a specified sequence by
+	 * using hash code to compare values. The elements of the second sequence
+	 * come after those of the source sequence, and duplicates are removed as
+	 * by {@link #distinct()}.
+	 *
+	 * @param second            A sequence whose distinct elements form the second set for
+	 *            the union.
+	 * @return A {@code Query<T>} that contains the elements from both
+	 *         sequences, excluding duplicates.
+	 */
+	@SuppressWarnings("unchecked")
+	public LinqQuery<T> union(Iterable<T> second) {
+		ArrayList<T> all = this.toArrayList();
+		if (second instanceof Collection<?>) {
+			all.addAll((Collection<T>) second);
+		} else {
+			for (T item : second) {
+				all.add(item);
+			}
+		}
+		ParallelQuery<T> rs = new ParallelQuery<T>(all)
+				.withThreshold(this.mThreshold);
+		if (this.mPool != null) {
+			rs = rs.withPool(this.mPool);
+		}
+		return (this.mOrdered ? rs : rs.asUnordered()).distinct();
+	}
+
+	/**
+	 * Creates a {@code Map<TKey, TValue>} from the query according to a
+	 * specified key {@code Selector}. An ordered query returns a
+	 * {@code LinkedHashMap} in source order, built from one map per chunk.
+	 * An unordered query returns a {@code ConcurrentHashMap} which all
+	 * workers fill directly; it cannot hold <code>null</code> keys or
+	 * elements.
+	 *
+	 * @param <TKey> the generic type
+	 * @param selector            The {@code Selector} to extract key
+	 * @return A {@code Map<TKey, TValue>} that contains keys and values.
+	 * @throws Exception the exception
+	 */
+	@SuppressWarnings("unchecked")
+	public <TKey> Map<TKey, T> toMap(final Selector<T, TKey> selector)
+			throws Exception {
+		try {
+			if (!this.mOrdered) {
+				final ConcurrentHashMap<TKey, T> rs = new ConcurrentHashMap<TKey, T>();
+				this.runChunks(new ChunkFunction() {
+
+					@Override
+					public Object apply(int from, int to) throws Exception {
+						forEach(from, to, new ElementConsumer() {
+
+							@Override
+							public void accept(int index, Object element) {
+								if (rs.putIfAbsent(selector.select((T) element),
+										(T) element) != null) {
+									throw new IllegalStateException(
+											new DuplicateKeyException());
+								}
+							}
+						});
+						return null;
+					}
+				});
+				return rs;
+			}
+
+			Object[] chunks = this.runChunks(new ChunkFunction() {
+
+				@Override
+				public Object apply(int from, int to) throws Exception {
+					final LinkedHashMap<TKey, T> rs = new LinkedHashMap<TKey, T>();
+					forEach(from, to, new ElementConsumer() {
+
+						@Override
+						public void accept(int index, Object element) {
+							TKey key = selector.select((T) element);
+							if (rs.containsKey(key)) {
+								throw new IllegalStateException(
+										new DuplicateKeyException());
+							}
+							rs.put(key, (T) element);
+						}
+					});
+					return rs;
+				}
+			});
+			LinkedHashMap<TKey, T> rs = (LinkedHashMap<TKey, T>) chunks[0];
+			for (int i = 1; i < chunks.length; i++) {
+				for (Map.Entry<TKey, T> entry : ((LinkedHashMap<TKey, T>) chunks[i])
+						.entrySet()) {
+					if (rs.containsKey(entry.getKey())) {
+						throw new DuplicateKeyException();
+					}
+					rs.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return rs;
+		} catch (RuntimeException e) {
+			// workers report duplicates through unchecked exceptions
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof DuplicateKeyException) {
+					throw (DuplicateKeyException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Applies an accumulator function over the sequence in parallel. Every
+	 * chunk is folded on a worker from a seed of its own, then the partial
+	 * results are combined pairwise in a tree, always the earlier partial
+	 * first. The combiner has to be associative but need not be commutative,
+	 * and a seed has to be an identity of the combiner.
+	 *
+	 * @param <TAccumulate> the generic type
+	 * @param seedFactory            A {@code Factory<T>} creating the seed of every chunk.
+	 * @param accumulator            A {@code Joint<T1, T2, TResult>} to be invoked on each
+	 *            element.
+	 * @param combiner            A {@code Joint<T1, T2, TResult>} combining two partial
+	 *            results.
+	 * @return The final accumulator value.
+	 */
+	@SuppressWarnings("unchecked")
+	public <TAccumulate> TAccumulate aggregate(
+			final Factory<TAccumulate> seedFactory,
+			final Joint<TAccumulate, T, TAccumulate> accumulator,
+			final Joint<TAccumulate, TAccumulate, TAccumulate> combiner) {
+		Object[] partials = this.runChunks(new ChunkFunction() {
+
+			@Override
+			public Object apply(int from, int to) throws Exception {
+				final Object[] rs = { seedFactory.create() };
+				forEach(from, to, new ElementConsumer() {
+
+					@Override
+					public void accept(int index, Object element) {
+						try {
+							rs[0] = accumulator.join((TAccumulate) rs[0],
+									(T) element);
+						} catch (RuntimeException e) {
+							throw e;
+						} catch (Exception e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+				return rs[0];
+			}
+		});
+
+		while (partials.length > 1) {
+			final Object[] level = partials;
+			partials = this.runTasks((level.length + 1) / 2,
+					new TaskFunction() {
+
+						@Override
+						public Object apply(int index) throws Exception {
+							int first = index * 2;
+							return first + 1 < level.length ? combiner.join(
+									(TAccumulate) level[first],
+									(TAccumulate) level[first + 1])
+									: level[first];
+						}
+					});
+		}
+		return (TAccumulate) partials[0];
+	}
+
+	/**
+	 * Computes all aggregates of specified {@code Aggregation<T>} in one
+	 * parallel pass over the sequence.
+	 *
+	 * @param aggregation            The {@code Aggregation<T>} to compute.
+	 * @return The results, in the order the aggregates were added.
+	 */
+	public Object[] aggregate(final Aggregation<T> aggregation) {
+		return aggregation.finish(this.aggregate(new Factory<Object[]>() {
+
+			@Override
+			public Object[] create() {
+				return aggregation.seed();
+			}
+		}, new Joint<Object[], T, Object[]>() {
+
+			@Override
+			public Object[] join(Object[] arg1, T arg2) throws Exception {
+				return aggregation.accumulate(arg1, arg2);
+			}
+		}, new Joint<Object[], Object[], Object[]>() {
+
+			@Override
+			public Object[] join(Object[] arg1, Object[] arg2)
+					throws Exception {
+				return aggregation.combine(arg1, arg2);
+			}
+		}));
+	}
+
+	/**
+	 * Returns the results as a sequential {@code Query<T>}.
+	 *
+	 * @return A {@code Query<T>} over the results in source order.
+	 */
+	public LinqQuery<T> toQuery() {
+		return new LinqQuery<T>(this.toArrayList());
+	}
+
+	/**
+	 * Returns the number of elements in the sequence.
+	 *
+	 * @return The number of elements in the sequence.
+	 */
+	public int count() {
+		Object[] chunks = this.runChunks(new ChunkFunction() {
+
+			@Override
+			public Object apply(int from, int to) throws Exception {
+				final int[] rs = new int[1];
+				forEach(from, to, new ElementConsumer() {
+
+					@Override
+					public void accept(int index, Object element) {
+						rs[0]++;
+					}
+				});
+				return rs[0];
+			}
+		});
+
+		int rs = 0;
+		for (Object chunk : chunks) {
+			rs += (Integer) chunk;
+		}
+		return rs;
+	}
+
+	/**
+	 * Runs the stages on a range of the source.
+	 *
+	 * @param from the first index
+	 * @param to one past the last index
+	 * @param consumer the consumer of the elements passing every stage
+	 * @throws Exception the exception thrown by a predicate
+	 */
+	@SuppressWarnings("unchecked")
+	void forEach(int from, int to, ElementConsumer consumer) throws Exception {
+		Stage[] stages = this.mStages;
+		next_element: for (int i = from; i < to; i++) {
+			Object item = this.mArray != null ? this.mArray[i] : this.mList
+					.get(i);
+			for (Stage stage : stages) {
+				if (stage.kind == WHERE) {
+					if (!stage.predicate.evaluate(item)) {
+						continue next_element;
+					}
+				} else {
+					item = stage.selector.select(item);
+				}
+			}
+			consumer.accept(i, item);
+		}
+	}
+
+	/**
+	 * Splits the source into chunks and applies specified function to every
+	 * chunk on the pool. A chunk holds at least {@code mThreshold} elements,
+	 * and large sources are cut into about {@code CHUNKS_PER_THREAD} chunks
+	 * per pool thread so that per chunk results stay few.
+	 *
+	 * @param function the function
+	 * @return the results of the chunks in source order
+	 */
+	Object[] runChunks(final ChunkFunction function) {
+		int parallelism = this.mSize > this.mThreshold ? this.getPool()
+				.getParallelism() : 1;
+		final int chunkSize = Math.max(this.mThreshold, (int) Math.min(
+				Integer.MAX_VALUE, ((long) this.mSize + parallelism
+						* CHUNKS_PER_THREAD - 1)
+						/ (parallelism * CHUNKS_PER_THREAD)));
+		int count = Math.max(1, (int) (((long) this.mSize + chunkSize - 1) / chunkSize));
+		return this.runTasks(count, new TaskFunction() {
+
+			@Override
+			public Object apply(int index) throws Exception {
+				int from = index * chunkSize;
+				return function.apply(from,
+						(int) Math.min(mSize, (long) from + chunkSize));
+			}
+		});
+	}
+
+	/**
+	 * Applies specified function to the indices from 0 to count - 1 on the
+	 * pool.
+	 *
+	 * @param count the number of tasks
+	 * @param function the function
+	 * @return the results by index
+	 */
+	Object[] runTasks(int count, TaskFunction function) {
+		Object[] rs = new Object[count];
+		SplitTask task = new SplitTask(function, rs, 0, count);
+		if (count == 1) {
+			task.compute();
+		} else {
+			this.getPool().invoke(task);
+		}
+		return rs;
+	}
+
+	/**
+	 * Gets the pool the query runs on.
+	 *
+	 * @return the pool
+	 */
+	ForkJoinPool getPool() {
+		return this.mPool != null ? this.mPool : getDefaultPool();
+	}
+
+	/**
+	 * Computes the result of a chunk of the source.
+	 */
+	interface ChunkFunction {
+
+		/**
+		 * Computes the result of a range of the source.
+		 *
+		 * @param from the first index
+		 * @param to one past the last index
+		 * @return the result
+		 * @throws Exception the exception
+		 */
+		Object apply(int from, int to) throws Exception;
+	}
+
+	/**
+	 * Computes the result of a task.
+	 */
+	interface TaskFunction {
+
+		/**
+		 * Computes the result of specified task.
+		 *
+		 * @param index the index of the task
+		 * @return the result
+		 * @throws Exception the exception
+		 */
+		Object apply(int index) throws Exception;
+	}
+
+	/**
+	 * Receives the elements produced by the stages.
+	 */
+	interface ElementConsumer {
+
+		/**
+		 * Accept.
+		 *
+		 * @param index the source index of the element
+		 * @param element the element
+		 */
+		void accept(int index, Object element);
+	}
+
+	/**
+	 * A growable list of elements with their keys and source indexes.
+	 */
+	static final class Bucket {
+
+		/** The source indexes, or null if they are not kept. */
+		int[] indexes;
+
+		/** The keys. */
+		Object[] keys;
+
+		/** The elements. */
+		Object[] elements;
+
+		/** The size. */
+		int size;
+
+		/**
+		 * Instantiates a new bucket.
+		 *
+		 * @param withoutIndexes true if the source indexes are not kept
+		 */
+		Bucket(boolean withoutIndexes) {
+			this(withoutIndexes, 16);
+		}
+
+		/**
+		 * Instantiates a new bucket with an initial capacity.
+		 *
+		 * @param withoutIndexes true if the source indexes are not kept
+		 * @param capacity the initial capacity
+		 */
+		Bucket(boolean withoutIndexes, int capacity) {
+			capacity = Math.max(16, capacity);
+			this.indexes = withoutIndexes ? null : new int[capacity];
+			this.keys = new Object[capacity];
+			this.elements = new Object[capacity];
+		}
+
+		/**
+		 * Adds an element.
+		 *
+		 * @param index the source index
+		 * @param key the key
+		 * @param element the element
+		 */
+		void add(int index, Object key, Object element) {
+			if (this.size == this.elements.length) {
+				int capacity = this.size * 2;
+				this.keys = Arrays.copyOf(this.keys, capacity);
+				this.elements = Arrays.copyOf(this.elements,
+						capacity);
+				if (this.indexes != null) {
+					this.indexes = Arrays.copyOf(this.indexes,
+							capacity);
+				}
+			}
+			if (this.indexes != null) {
+				this.indexes[this.size] = index;
+			}
+			this.keys[this.size] = key;
+			this.elements[this.size] = element;
+			this.size++;
+		}
+	}
+
+	/**
+	 * Visits a subtree in pre-order. A child with siblings still to visit
+	 * becomes a task of its own while the worker has few queued tasks, so
+	 * that idle workers can steal large subtrees; the result keeps a
+	 * placeholder task where that subtree goes. Forked tasks are not joined
+	 * here.
+	 */
+	private static final class FlatternTask extends
+			RecursiveTask<ArrayList<Object>> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 8312456034729143590L;
+
+		/** The number of queued tasks above which children are not forked. */
+		private static final int SURPLUS_TASKS = 3;
+
+		/** The root of the subtree. */
+		private final Object mRoot;
+
+		/** The selector of the children. */
+		@SuppressWarnings("rawtypes")
+		private final Selector mSelector;
+
+		/**
+		 * Instantiates a new flattern task.
+		 *
+		 * @param root the root of the subtree
+		 * @param selector the selector of the children
+		 */
+		@SuppressWarnings("rawtypes")
+		FlatternTask(Object root, Selector selector) {
+			this.mRoot = root;
+			this.mSelector = selector;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected ArrayList<Object> compute() {
+			ArrayList<Object> rs = new ArrayList<Object>();
+			// an explicit stack, so that deep trees do not overflow
+			ArrayDeque<Iterator<?>> stack = new ArrayDeque<Iterator<?>>();
+			// nodes may be null, like in the sequential walk
+			Object node = this.mRoot;
+			boolean visit = true;
+			while (visit) {
+				rs.add(node);
+				@SuppressWarnings("unchecked")
+				Iterable<?> children = (Iterable<?>) this.mSelector
+						.select(node);
+				if (children != null) {
+					stack.push(children.iterator());
+				}
+
+				visit = false;
+				while (!visit && !stack.isEmpty()) {
+					Iterator<?> siblings = stack.peek();
+					if (!siblings.hasNext()) {
+						stack.pop();
+						continue;
+					}
+					Object child = siblings.next();
+					// an only child is walked here: forking a chain gains
+					// nothing
+					if (siblings.hasNext()
+							&& getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+						FlatternTask task = new FlatternTask(child,
+								this.mSelector);
+						task.fork();
+						rs.add(task);
+					} else {
+						node = child;
+						visit = true;
+					}
+				}
+			}
+			return rs;
+		}
+	}
+
+	/**
+	 * A group remembering the source index of its first element.
+	 */
+	private static final class IndexedGroup extends ListGroup<Object, Object> {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = 5139024784417312211L;
+
+		/** The source index of the first element. */
+		final int firstIndex;
+
+		/**
+		 * Instantiates a new indexed group.
+		 *
+		 * @param key the key
+		 * @param firstIndex the source index of the first element
+		 */
+		IndexedGroup(Object key, int firstIndex) {
+			super(key);
+			this.firstIndex = firstIndex;
+		}
+	}
+
+	/**
+	 * The Class Stage.
+	 */
+	private static final class Stage {
+
+		/** The kind. */
+		final int kind;
+
+		/** The predicate. */
+		@SuppressWarnings("rawtypes")
+		Predicate predicate;
+
+		/** The selector. */
+		@SuppressWarnings("rawtypes")
+		Selector selector;
+
+		/**
+		 * Instantiates a new stage.
+		 *
+		 * @param kind the kind
+		 */
+		Stage(int kind) {
+			this.kind = kind;
+		}
+	}
+
+	/**
+	 * Splits a range of tasks in halves until a single task remains.
+	 */
+	private static final class SplitTask extends RecursiveAction {
+
+		/** The Constant serialVersionUID. */
+		private static final long serialVersionUID = -2916434583532364810L;
+
+		/** The m function. */
+		private final TaskFunction mFunction;
+
+		/** The results of all tasks. */
+		private final Object[] mResults;
+
+		/** The first task. */
+		private final int mFrom;
+
+		/** One past the last task. */
+		private final int mTo;
+
+		/**
+		 * Instantiates a new split task.
+		 *
+		 * @param function the function
+		 * @param results the results
+		 * @param from the first task
+		 * @param to one past the last task
+		 */
+		SplitTask(TaskFunction function, Object[] results, int from, int to) {
+			this.mFunction = function;
+			this.mResults = results;
+			this.mFrom = from;
+			this.mTo = to;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if (this.mTo - this.mFrom > 1) {
+				int middle = (this.mFrom + this.mTo) >>> 1;
+				invokeAll(new SplitTask(this.mFunction, this.mResults,
+						this.mFrom, middle), new SplitTask(this.mFunction,
+						this.mResults, middle, this.mTo));
+				return;
+			}
+
+			try {
+				this.mResults[this.mFrom] = this.mFunction.apply(this.mFrom);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
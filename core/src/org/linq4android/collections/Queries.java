@@ -17,6 +17,8 @@
 package org.linq4android.collections;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Provides convenient static methods for creating a {@code Linq}.
  *
@@ -141,6 +143,43 @@ public final class Queries {
 		return new LinqQuery<T>(rs);
 	}
 
+	/**
+	 * Recursive searches specified object's children on the default
+	 * fork/join pool, and returns them as a parallel query.
+	 *
+	 * @param <T> the generic type
+	 * @param ancestor            the object to search
+	 * @param selector            selector for getting specified object's children; it
+	 *            runs concurrently and must be thread-safe
+	 * @return An {@code ParallelQuery<T>} contains specified object and all
+	 *         children in pre-order
+	 */
+	public static <T> ParallelQuery<T> parallelFlatternChildren(T ancestor,
+			Selector<T, Iterable<T>> selector) {
+		return ParallelQuery.flatternChildren(ancestor, selector, null);
+	}
+
+	/**
+	 * Recursive searches specified object's children on specified fork/join
+	 * pool, and returns them as a parallel query on that pool. Subtrees are
+	 * handed to idle workers as they are found, and the nodes keep the order
+	 * of {@link #flatternChildren(Object, Selector)}; call
+	 * {@link ParallelQuery#asUnordered()} on the result when later operators
+	 * need not keep it.
+	 *
+	 * @param <T> the generic type
+	 * @param ancestor            the object to search
+	 * @param selector            selector for getting specified object's children; it
+	 *            runs concurrently and must be thread-safe
+	 * @param pool            the pool
+	 * @return An {@code ParallelQuery<T>} contains specified object and all
+	 *         children in pre-order
+	 */
+	public static <T> ParallelQuery<T> parallelFlatternChildren(T ancestor,
+			Selector<T, Iterable<T>> selector, ForkJoinPool pool) {
+		return ParallelQuery.flatternChildren(ancestor, selector, pool);
+	}
+
 	/**
 	 * The Class FlatternerIterable.
 	 *
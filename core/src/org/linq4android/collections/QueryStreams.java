@@ -0,0 +1,252 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Bridges {@code Query<T>} and {@code java.util.stream}. This class needs a
+ * Java 8 runtime; it is kept apart from {@code LinqQuery} so that the rest of
+ * the library still runs on older Android releases.
+ *
+ * @author ziaagikian
+ */
+public final class QueryStreams {
+
+	/**
+	 * Creates a {@code Spliterator<T>} over specified query. Arrays and random
+	 * access lists are split in balanced halves and report
+	 * {@code SIZED | SUBSIZED | ORDERED}; other collections report the
+	 * characteristics of their own spliterator, such as {@code DISTINCT} for
+	 * sets and {@code SORTED} for sorted sets. Any other sequence reports
+	 * {@code ORDERED} only.
+	 *
+	 * @param <T> the generic type
+	 * @param query the query
+	 * @return the spliterator
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Spliterator<T> spliterator(LinqQuery<T> query) {
+		Iterable<T> source = query.getSource();
+		if (source instanceof IterableArray<?>) {
+			return Spliterators.spliterator(
+					((IterableArray<T>) source).getSource(), Spliterator.ORDERED);
+		} else if (source instanceof List<?> && source instanceof RandomAccess) {
+			List<T> list = (List<T>) source;
+			return new RandomAccessSpliterator<T>(list, 0, list.size());
+		} else if (source instanceof Collection<?>) {
+			return ((Collection<T>) source).spliterator();
+		} else if (source instanceof StreamIterable<?>) {
+			return ((StreamIterable<T>) source).spliterator();
+		}
+		return Spliterators.spliteratorUnknownSize(source.iterator(),
+				Spliterator.ORDERED);
+	}
+
+	/**
+	 * Creates a sequential {@code Stream<T>} over specified query.
+	 *
+	 * @param <T> the generic type
+	 * @param query the query
+	 * @return the stream
+	 */
+	public static <T> Stream<T> toStream(LinqQuery<T> query) {
+		return toStream(query, false);
+	}
+
+	/**
+	 * Creates a {@code Stream<T>} over specified query. A query created by
+	 * {@link #fromStream(Stream)} gives back its stream.
+	 *
+	 * @param <T> the generic type
+	 * @param query the query
+	 * @param parallel true to create a parallel stream
+	 * @return the stream
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Stream<T> toStream(LinqQuery<T> query, boolean parallel) {
+		Iterable<T> source = query.getSource();
+		if (source instanceof StreamIterable<?>) {
+			Stream<T> stream = ((StreamIterable<T>) source).take();
+			return parallel ? stream.parallel() : stream.sequential();
+		}
+		return StreamSupport.stream(spliterator(query), parallel);
+	}
+
+	/**
+	 * Creates a {@code Query<T>} over specified stream. The stream is consumed
+	 * lazily and the query can be iterated only once, like the stream
+	 * itself.
+	 *
+	 * @param <T> the generic type
+	 * @param stream the stream
+	 * @return the linq
+	 */
+	public static <T> LinqQuery<T> fromStream(Stream<T> stream) {
+		if (stream == null) {
+			throw new IllegalArgumentException("source stream is null");
+		}
+		return new LinqQuery<T>(new StreamIterable<T>(stream));
+	}
+
+	/**
+	 * The Class StreamIterable.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class StreamIterable<T> implements Iterable<T> {
+
+		/** The m stream, null once it has been handed out. */
+		private Stream<T> mStream;
+
+		/**
+		 * Instantiates a new stream iterable.
+		 *
+		 * @param stream the stream
+		 */
+		public StreamIterable(Stream<T> stream) {
+			this.mStream = stream;
+		}
+
+		/**
+		 * Hands out the stream, which can happen only once.
+		 *
+		 * @return the stream
+		 */
+		synchronized Stream<T> take() {
+			if (this.mStream == null) {
+				throw new IllegalStateException(
+						"stream has already been operated upon");
+			}
+			Stream<T> rs = this.mStream;
+			this.mStream = null;
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			return this.take().iterator();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#spliterator()
+		 */
+		@Override
+		public Spliterator<T> spliterator() {
+			return this.take().spliterator();
+		}
+	}
+
+	/**
+	 * Splits a random access list in balanced halves.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class RandomAccessSpliterator<T> implements Spliterator<T> {
+
+		/** The m source. */
+		private List<T> mSource;
+
+		/** The m index. */
+		private int mIndex;
+
+		/** The m fence, one past the last index. */
+		private int mFence;
+
+		/**
+		 * Instantiates a new random access spliterator.
+		 *
+		 * @param source the source
+		 * @param index the first index
+		 * @param fence one past the last index
+		 */
+		public RandomAccessSpliterator(List<T> source, int index, int fence) {
+			this.mSource = source;
+			this.mIndex = index;
+			this.mFence = fence;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+		 */
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.mIndex < this.mFence) {
+				action.accept(this.mSource.get(this.mIndex));
+				this.mIndex++;
+				return true;
+			}
+			return false;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#forEachRemaining(java.util.function.Consumer)
+		 */
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			List<T> source = this.mSource;
+			int fence = this.mFence;
+			for (int i = this.mIndex; i < fence; i++) {
+				action.accept(source.get(i));
+			}
+			this.mIndex = fence;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#trySplit()
+		 */
+		@Override
+		public Spliterator<T> trySplit() {
+			int middle = (this.mIndex + this.mFence) >>> 1;
+			if (middle <= this.mIndex) {
+				return null;
+			}
+			Spliterator<T> rs = new RandomAccessSpliterator<T>(this.mSource,
+					this.mIndex, middle);
+			this.mIndex = middle;
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#estimateSize()
+		 */
+		@Override
+		public long estimateSize() {
+			return this.mFence - this.mIndex;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#characteristics()
+		 */
+		@Override
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.SIZED
+					| Spliterator.SUBSIZED;
+		}
+	}
+}
@@ -0,0 +1,612 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A query shape compiled once and executed against many sources. Predicates,
+ * selectors and key comparators are created when the template is built, so
+ * an execution only allocates the iterator running the pipeline and the
+ * buffers of the sorting and grouping stages. Values which change between
+ * executions are passed to {@link #execute(Iterable, Object...)} and read by
+ * {@code ParameterizedPredicate} and {@code ParameterizedSelector} stages.
+ * <p>
+ * A template is immutable; every building method returns a new template.
+ * It can be shared between threads as long as its predicates, selectors and
+ * comparators are stateless.
+ *
+ * @author ziaagikian
+ * @param <TSource> The element type of the sources the template runs on
+ * @param <T> The element type produced by the template
+ */
+public final class QueryTemplate<TSource, T> {
+
+	/** Filters elements. */
+	private static final int WHERE = 0;
+
+	/** Projects elements. */
+	private static final int SELECT = 1;
+
+	/** Sorts all elements. */
+	private static final int ORDER_BY = 2;
+
+	/** Groups all elements. */
+	private static final int GROUP_BY = 3;
+
+	/** Bypasses elements. */
+	private static final int SKIP = 4;
+
+	/** Limits elements. */
+	private static final int TAKE = 5;
+
+	/** The stages in execution order. */
+	private final Stage[] mStages;
+
+	/**
+	 * Instantiates a new query template.
+	 *
+	 * @param stages the stages
+	 */
+	private QueryTemplate(Stage[] stages) {
+		this.mStages = stages;
+	}
+
+	/**
+	 * Creates an empty template which returns the source elements unchanged.
+	 *
+	 * @param <T> the generic type
+	 * @return the query template
+	 */
+	public static <T> QueryTemplate<T, T> create() {
+		return new QueryTemplate<T, T>(new Stage[0]);
+	}
+
+	/**
+	 * Appends a stage.
+	 *
+	 * @param <TResult> the generic type
+	 * @param stage the stage
+	 * @return the new query template
+	 */
+	private <TResult> QueryTemplate<TSource, TResult> append(Stage stage) {
+		Stage[] stages = new Stage[this.mStages.length + 1];
+		System.arraycopy(this.mStages, 0, stages, 0, this.mStages.length);
+		stages[this.mStages.length] = stage;
+		return new QueryTemplate<TSource, TResult>(stages);
+	}
+
+	/**
+	 * Filters the elements based on a predicate.
+	 *
+	 * @param predicate            A {@code Predicate<T>} to test each element for a condition.
+	 * @return A template that also filters its elements.
+	 */
+	public QueryTemplate<TSource, T> where(final Predicate<T> predicate) {
+		return this.where(new ParameterizedPredicate<T>() {
+
+			@Override
+			public boolean evaluate(T obj, Object[] parameters)
+					throws Exception {
+				return predicate.evaluate(obj);
+			}
+		});
+	}
+
+	/**
+	 * Filters the elements based on a predicate reading the execution
+	 * parameters.
+	 *
+	 * @param predicate            A {@code ParameterizedPredicate<T>} to test each element for a condition.
+	 * @return A template that also filters its elements.
+	 */
+	public QueryTemplate<TSource, T> where(ParameterizedPredicate<T> predicate) {
+		Stage stage = new Stage(WHERE);
+		stage.predicate = predicate;
+		return this.append(stage);
+	}
+
+	/**
+	 * Projects each element into a new form.
+	 *
+	 * @param <TResult> the generic type
+	 * @param selector            A transform {@code Selector<T, TResult>} to apply to each
+	 *            element.
+	 * @return A template whose elements are the result of the transform.
+	 */
+	public <TResult> QueryTemplate<TSource, TResult> select(
+			final Selector<T, TResult> selector) {
+		return this.select(new ParameterizedSelector<T, TResult>() {
+
+			@Override
+			public TResult select(T item, Object[] parameters) {
+				return selector.select(item);
+			}
+		});
+	}
+
+	/**
+	 * Projects each element into a new form using the execution parameters.
+	 *
+	 * @param <TResult> the generic type
+	 * @param selector            A transform {@code ParameterizedSelector<T, TResult>} to
+	 *            apply to each element.
+	 * @return A template whose elements are the result of the transform.
+	 */
+	public <TResult> QueryTemplate<TSource, TResult> select(
+			ParameterizedSelector<T, TResult> selector) {
+		Stage stage = new Stage(SELECT);
+		stage.selector = selector;
+		return this.append(stage);
+	}
+
+	/**
+	 * Sorts the elements in ascending order according to a key.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract a key from an
+	 *            element.
+	 * @return A template whose elements are sorted according to a key.
+	 */
+	public <TKey> QueryTemplate<TSource, T> orderBy(Selector<T, TKey> keySelector) {
+		return this.orderBy(keySelector, null);
+	}
+
+	/**
+	 * Sorts the elements in ascending order by using a specified
+	 * {@code Comparator<T>}.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract a key from an
+	 *            element.
+	 * @param comparator            A {@code Comparator<T>}to compare keys.
+	 * @return A template whose elements are sorted according to a key.
+	 */
+	public <TKey> QueryTemplate<TSource, T> orderBy(
+			Selector<T, TKey> keySelector, Comparator<TKey> comparator) {
+		Stage stage = new Stage(ORDER_BY);
+		stage.comparator = new KeyComparator<T, TKey>(keySelector,
+				comparator != null ? comparator : new NaturalComparator<TKey>());
+		return this.append(stage);
+	}
+
+	/**
+	 * Sorts the elements in descending order according to a key.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract a key from an
+	 *            element.
+	 * @return A template whose elements are sorted in descending order
+	 *         according to a key.
+	 */
+	public <TKey> QueryTemplate<TSource, T> orderByDescending(
+			Selector<T, TKey> keySelector) {
+		return this.orderByDescending(keySelector, null);
+	}
+
+	/**
+	 * Sorts the elements in descending order by using a specified
+	 * {@code Comparator<T>}.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract a key from an
+	 *            element.
+	 * @param comparator            A {@code Comparator<T>}to compare keys.
+	 * @return A template whose elements are sorted in descending order
+	 *         according to a key.
+	 */
+	public <TKey> QueryTemplate<TSource, T> orderByDescending(
+			Selector<T, TKey> keySelector, Comparator<TKey> comparator) {
+		Stage stage = new Stage(ORDER_BY);
+		stage.comparator = new ReverseComparator<T>(new KeyComparator<T, TKey>(
+				keySelector, comparator != null ? comparator
+						: new NaturalComparator<TKey>()));
+		return this.append(stage);
+	}
+
+	/**
+	 * Groups the elements according to a specified key selector.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key for each
+	 *            element.
+	 * @return A template in where each {@code IGrouping} object contains a
+	 *         sequence of objects and a key.
+	 */
+	public <TKey> QueryTemplate<TSource, IGrouping<TKey, T>> groupBy(
+			Selector<T, TKey> keySelector) {
+		return this.groupBy(keySelector, null);
+	}
+
+	/**
+	 * Groups the elements according to a specified key selector and compares
+	 * the keys by using a specified comparer.
+	 *
+	 * @param <TKey> the generic type
+	 * @param keySelector            A {@code Selector<T, TResult>} to extract the key for each
+	 *            element.
+	 * @param comparator            An {@code Comparator<T>} to compare keys.
+	 * @return A template in where each {@code IGrouping} object contains a
+	 *         sequence of objects and a key.
+	 */
+	public <TKey> QueryTemplate<TSource, IGrouping<TKey, T>> groupBy(
+			Selector<T, TKey> keySelector, Comparator<TKey> comparator) {
+		Stage stage = new Stage(GROUP_BY);
+		stage.keySelector = keySelector;
+		stage.comparator = comparator != null ? comparator
+				: new NaturalComparator<TKey>();
+		return this.append(stage);
+	}
+
+	/**
+	 * Bypasses a specified number of elements.
+	 *
+	 * @param count
+	 *            The number of elements to skip.
+	 * @return A template that also skips the leading elements.
+	 */
+	public QueryTemplate<TSource, T> skip(int count) {
+		Stage stage = new Stage(SKIP);
+		stage.count = count;
+		return this.append(stage);
+	}
+
+	/**
+	 * Returns a specified number of contiguous elements from the start.
+	 *
+	 * @param count
+	 *            The number of elements to return.
+	 * @return A template that also limits the number of elements.
+	 */
+	public QueryTemplate<TSource, T> take(int count) {
+		Stage stage = new Stage(TAKE);
+		stage.count = count;
+		return this.append(stage);
+	}
+
+	/**
+	 * Runs the template against specified source.
+	 *
+	 * @param source the source
+	 * @param parameters the parameters passed to the parameterized stages
+	 * @return A {@code Query<T>} whose elements are produced by the template.
+	 */
+	public LinqQuery<T> execute(Iterable<TSource> source, Object... parameters) {
+		if (source == null) {
+			throw new IllegalArgumentException("source iterator is null");
+		}
+		return new LinqQuery<T>(new TemplateIterable<T>(this.mStages, source,
+				parameters));
+	}
+
+	/**
+	 * Runs the template against specified array.
+	 *
+	 * @param source the source
+	 * @param parameters the parameters passed to the parameterized stages
+	 * @return A {@code Query<T>} whose elements are produced by the template.
+	 */
+	public LinqQuery<T> execute(TSource[] source, Object... parameters) {
+		if (source == null) {
+			throw new IllegalArgumentException("source iterator is null");
+		}
+		return this.execute(new IterableArray<TSource>(source), parameters);
+	}
+
+	/**
+	 * The Class Stage.
+	 */
+	private static final class Stage {
+
+		/** The kind. */
+		final int kind;
+
+		/** The predicate. */
+		@SuppressWarnings("rawtypes")
+		ParameterizedPredicate predicate;
+
+		/** The selector. */
+		@SuppressWarnings("rawtypes")
+		ParameterizedSelector selector;
+
+		/** The key selector. */
+		@SuppressWarnings("rawtypes")
+		Selector keySelector;
+
+		/** The comparator. */
+		@SuppressWarnings("rawtypes")
+		Comparator comparator;
+
+		/** The count. */
+		int count;
+
+		/**
+		 * Instantiates a new stage.
+		 *
+		 * @param kind the kind
+		 */
+		Stage(int kind) {
+			this.kind = kind;
+		}
+
+		/**
+		 * Checks if the stage needs the whole input before producing output.
+		 *
+		 * @return true, if is blocking
+		 */
+		boolean isBlocking() {
+			return this.kind == ORDER_BY || this.kind == GROUP_BY;
+		}
+	}
+
+	/**
+	 * The Class KeyComparator.
+	 *
+	 * @param <T> the generic type
+	 * @param <TKey> the generic type
+	 */
+	private static final class KeyComparator<T, TKey> implements Comparator<T> {
+
+		/** The key selector. */
+		private final Selector<T, TKey> mKeySelector;
+
+		/** The inner comparator. */
+		private final Comparator<TKey> mInnerComparator;
+
+		/**
+		 * Instantiates a new key comparator.
+		 *
+		 * @param keySelector the key selector
+		 * @param innerComparator the inner comparator
+		 */
+		KeyComparator(Selector<T, TKey> keySelector,
+				Comparator<TKey> innerComparator) {
+			this.mKeySelector = keySelector;
+			this.mInnerComparator = innerComparator;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
+		 */
+		@Override
+		public int compare(T o1, T o2) {
+			return this.mInnerComparator.compare(this.mKeySelector.select(o1),
+					this.mKeySelector.select(o2));
+		}
+	}
+
+	/**
+	 * The Class TemplateIterable.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static final class TemplateIterable<T> implements Iterable<T> {
+
+		/** The m stages. */
+		private final Stage[] mStages;
+
+		/** The m source. */
+		private final Iterable<?> mSource;
+
+		/** The m parameters. */
+		private final Object[] mParameters;
+
+		/**
+		 * Instantiates a new template iterable.
+		 *
+		 * @param stages the stages
+		 * @param source the source
+		 * @param parameters the parameters
+		 */
+		TemplateIterable(Stage[] stages, Iterable<?> source,
+				Object[] parameters) {
+			this.mStages = stages;
+			this.mSource = source;
+			this.mParameters = parameters;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Iterable#iterator()
+		 */
+		@Override
+		public Iterator<T> iterator() {
+			return new TemplateIterator<T>(this.mStages, this.mSource,
+					this.mParameters);
+		}
+	}
+
+	/**
+	 * Runs the streaming stages of a template in one loop and materializes
+	 * the input of the sorting and grouping stages.
+	 *
+	 * @param <T> the generic type
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final class TemplateIterator<T> implements Iterator<T> {
+
+		/** The m stages. */
+		private final Stage[] mStages;
+
+		/** The m parameters. */
+		private final Object[] mParameters;
+
+		/** The per stage counters of skip and take stages. */
+		private final int[] mCounters;
+
+		/** The m source. */
+		private Iterator<?> mSource;
+
+		/** The index of the first stage applied while streaming. */
+		private int mFirstStage;
+
+		/** The m current. */
+		private Object mCurrent;
+
+		// 0: need To Find Next, 1: return current, 2 : end
+		/** The m state. */
+		private int mState = 0;
+
+		/**
+		 * Instantiates a new template iterator.
+		 *
+		 * @param stages the stages
+		 * @param source the source
+		 * @param parameters the parameters
+		 */
+		TemplateIterator(Stage[] stages, Iterable<?> source, Object[] parameters) {
+			this.mStages = stages;
+			this.mParameters = parameters;
+			this.mCounters = new int[stages.length];
+			this.mSource = source.iterator();
+		}
+
+		/**
+		 * Drains the streaming stages before specified blocking stage and
+		 * runs it.
+		 *
+		 * @param index the index of the blocking stage
+		 */
+		private void runBlocking(int index) {
+			ArrayList<Object> buffer = new ArrayList<Object>();
+			while (this.pull(index)) {
+				buffer.add(this.mCurrent);
+			}
+
+			Stage stage = this.mStages[index];
+			if (stage.kind == ORDER_BY) {
+				Collections.sort(buffer, stage.comparator);
+				this.mSource = buffer.iterator();
+			} else {
+				TreeMap<Object, ListGroup> groups = new TreeMap<Object, ListGroup>(
+						stage.comparator);
+				for (Object element : buffer) {
+					Object key = stage.keySelector.select(element);
+					ListGroup group = groups.get(key);
+					if (group == null) {
+						group = new ListGroup(key);
+						groups.put(key, group);
+					}
+					group.add(element);
+				}
+				this.mSource = groups.values().iterator();
+			}
+			this.mFirstStage = index + 1;
+			this.mCurrent = null;
+		}
+
+		/**
+		 * Pulls the next element through the streaming stages from
+		 * {@code mFirstStage} up to specified stage.
+		 *
+		 * @param end the index of the first stage not applied
+		 * @return true if an element was stored in {@code mCurrent}
+		 */
+		private boolean pull(int end) {
+			next_element: while (this.mSource.hasNext()) {
+				Object item = this.mSource.next();
+				for (int i = this.mFirstStage; i < end; i++) {
+					Stage stage = this.mStages[i];
+					switch (stage.kind) {
+					case WHERE:
+						try {
+							if (!stage.predicate.evaluate(item, this.mParameters)) {
+								continue next_element;
+							}
+						} catch (Exception e) {
+							throw new IllegalStateException(e);
+						}
+						break;
+					case SELECT:
+						item = stage.selector.select(item, this.mParameters);
+						break;
+					case SKIP:
+						if (this.mCounters[i] < stage.count) {
+							this.mCounters[i]++;
+							continue next_element;
+						}
+						break;
+					case TAKE:
+						if (this.mCounters[i] >= stage.count) {
+							return false;
+						}
+						this.mCounters[i]++;
+						break;
+					default:
+						throw new IllegalStateException();
+					}
+				}
+				this.mCurrent = item;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Find next.
+		 */
+		private void findNext() {
+			for (int i = this.mFirstStage; i < this.mStages.length; i++) {
+				if (this.mStages[i].isBlocking()) {
+					this.runBlocking(i);
+				}
+			}
+			this.mState = this.pull(this.mStages.length) ? 1 : 2;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			if (this.mState == 0) {
+				this.findNext();
+			}
+			return this.mState != 2;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public T next() {
+			if (this.mState == 0) {
+				this.findNext();
+			}
+			if (this.mState == 2) {
+				throw new NoSuchElementException();
+			}
+			T rs = (T) this.mCurrent;
+			this.mCurrent = null;
+			this.mState = 0;
+			return rs;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#remove()
+		 */
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+
+		}
+	}
+}
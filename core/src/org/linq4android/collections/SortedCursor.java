@@ -0,0 +1,250 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A position in a sequence sorted by a {@code Comparator<T>}, used by the
+ * merging set operators. Lists with random access and arrays are skipped
+ * through by galloping, the way TimSort's gallopLeft does: steps of 1, 2, 4,
+ * ... elements find a range, and a binary search within it the target; other
+ * sequences are skipped through one element at a time.
+ *
+ * @param <T> the generic type
+ */
+abstract class SortedCursor<T> {
+
+	/** The m comparator. */
+	final Comparator<? super T> mComparator;
+
+	/**
+	 * Instantiates a new sorted cursor.
+	 *
+	 * @param comparator the comparator
+	 */
+	SortedCursor(Comparator<? super T> comparator) {
+		this.mComparator = comparator;
+	}
+
+	/**
+	 * Creates a cursor at the first element of a sequence.
+	 *
+	 * @param <T> the generic type
+	 * @param source the sequence
+	 * @param comparator the comparator the sequence is sorted by
+	 * @return the cursor
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> SortedCursor<T> create(Iterable<T> source,
+			Comparator<? super T> comparator) {
+		if (source instanceof IterableArray<?>) {
+			return new ListCursor<T>(Arrays.asList(((IterableArray<T>) source)
+					.getSource()), comparator);
+		} else if (source instanceof List<?> && source instanceof RandomAccess) {
+			return new ListCursor<T>((List<T>) source, comparator);
+		}
+		return new IteratorCursor<T>(source.iterator(), comparator);
+	}
+
+	/**
+	 * Determines whether the cursor is at an element.
+	 *
+	 * @return false if the sequence is exhausted
+	 */
+	abstract boolean hasCurrent();
+
+	/**
+	 * Gets the element at the cursor.
+	 *
+	 * @return the element
+	 */
+	abstract T current();
+
+	/**
+	 * Moves to the next element.
+	 */
+	abstract void advance();
+
+	/**
+	 * Moves to the first element not less than specified one.
+	 *
+	 * @param target the target
+	 */
+	abstract void skipTo(T target);
+
+	/**
+	 * A cursor over a list with random access.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class ListCursor<T> extends SortedCursor<T> {
+
+		/** The m list. */
+		private final List<T> mList;
+
+		/** The m size. */
+		private final int mSize;
+
+		/** The m position. */
+		private int mPosition;
+
+		/**
+		 * Instantiates a new list cursor.
+		 *
+		 * @param list the list
+		 * @param comparator the comparator
+		 */
+		ListCursor(List<T> list, Comparator<? super T> comparator) {
+			super(comparator);
+			this.mList = list;
+			this.mSize = list.size();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#hasCurrent()
+		 */
+		@Override
+		boolean hasCurrent() {
+			return this.mPosition < this.mSize;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#current()
+		 */
+		@Override
+		T current() {
+			return this.mList.get(this.mPosition);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#advance()
+		 */
+		@Override
+		void advance() {
+			this.mPosition++;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#skipTo(java.lang.Object)
+		 */
+		@Override
+		void skipTo(T target) {
+			int position = this.mPosition;
+			if (position >= this.mSize
+					|| this.mComparator.compare(this.mList.get(position), target) >= 0) {
+				return;
+			}
+
+			// gallop: the element at last is less than target
+			int remaining = this.mSize - position;
+			int last = position;
+			int offset = 1;
+			while (offset < remaining
+					&& this.mComparator.compare(
+							this.mList.get(position + offset), target) < 0) {
+				last = position + offset;
+				offset <<= 1;
+				if (offset <= 0) {
+					offset = remaining;
+				}
+			}
+			int high = position + Math.min(offset, remaining);
+
+			// the first element not less than target is in (last, high]
+			int low = last + 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (this.mComparator.compare(this.mList.get(middle), target) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			this.mPosition = low;
+		}
+	}
+
+	/**
+	 * A cursor over an iterator.
+	 *
+	 * @param <T> the generic type
+	 */
+	private static class IteratorCursor<T> extends SortedCursor<T> {
+
+		/** The m iterator. */
+		private final Iterator<T> mIterator;
+
+		/** The m current. */
+		private T mCurrent;
+
+		/** The m has current. */
+		private boolean mHasCurrent;
+
+		/**
+		 * Instantiates a new iterator cursor.
+		 *
+		 * @param iterator the iterator
+		 * @param comparator the comparator
+		 */
+		IteratorCursor(Iterator<T> iterator, Comparator<? super T> comparator) {
+			super(comparator);
+			this.mIterator = iterator;
+			this.advance();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#hasCurrent()
+		 */
+		@Override
+		boolean hasCurrent() {
+			return this.mHasCurrent;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#current()
+		 */
+		@Override
+		T current() {
+			return this.mCurrent;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#advance()
+		 */
+		@Override
+		void advance() {
+			this.mHasCurrent = this.mIterator.hasNext();
+			this.mCurrent = this.mHasCurrent ? this.mIterator.next() : null;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.linq4android.collections.SortedCursor#skipTo(java.lang.Object)
+		 */
+		@Override
+		void skipTo(T target) {
+			while (this.mHasCurrent
+					&& this.mComparator.compare(this.mCurrent, target) < 0) {
+				this.advance();
+			}
+		}
+	}
+}
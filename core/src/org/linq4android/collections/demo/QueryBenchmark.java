@@ -0,0 +1,567 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.linq4android.collections.demo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.linq4android.collections.CompositeKey;
+import org.linq4android.collections.Joint;
+import org.linq4android.collections.LinqQuery;
+import org.linq4android.collections.Lookup;
+import org.linq4android.collections.NaturalComparator;
+import org.linq4android.collections.ParallelQuery;
+import org.linq4android.collections.Predicate;
+import org.linq4android.collections.Queries;
+import org.linq4android.collections.Selector;
+
+/**
+ * Micro benchmarks for the query operators. Run it on a desktop JVM; the
+ * allocation counters come from {@code com.sun.management.ThreadMXBean} and
+ * are reported as -1 where it is not available.
+ *
+ * @author ziaagikian
+ */
+public class QueryBenchmark {
+
+	/** The number of measured executions per benchmark. */
+	private static final int RUNS = 10000;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main(String[] args) {
+		try {
+			benchmarkIteratorReuse();
+			benchmarkParallelGroupBy();
+			benchmarkParallelJoin();
+			benchmarkParallelDistinct();
+			benchmarkHashJoin();
+			benchmarkJoinBuildSide();
+			benchmarkCompositeJoin();
+			benchmarkLookupJoin();
+			benchmarkSortedIntersect();
+			benchmarkDistinctTake();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Compares the bytes allocated per execution of a where/select/take query
+	 * with and without iterator reuse.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkIteratorReuse() throws Exception {
+		Integer[] values = new Integer[64];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+
+		LinqQuery<Integer> query = Queries.query(values)
+				.where(new Predicate<Integer>() {
+
+					@Override
+					public boolean evaluate(Integer value) throws Exception {
+						return value % 2 == 0;
+					}
+				}).select(new Selector<Integer, Integer>() {
+
+					@Override
+					public Integer select(Integer item) {
+						return item;
+					}
+				}).take(16);
+
+		System.out.println("iterator reuse, bytes per execution:");
+		System.out.println("  default         " + allocationsPerRun(query));
+		System.out.println("  reuseIterators  "
+				+ allocationsPerRun(query.reuseIterators()));
+	}
+
+	/**
+	 * Compares the sequential groupBy with the parallel one on 1 to 8
+	 * threads, grouping 2M elements by 10k distinct keys.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkParallelGroupBy() throws Exception {
+		Integer[] values = new Integer[2000000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+		}
+		Selector<Integer, Integer> key = new Selector<Integer, Integer>() {
+
+			@Override
+			public Integer select(Integer item) {
+				return item % 10000;
+			}
+		};
+
+		System.out.println("groupBy, 2M elements, 10k keys:");
+		long sequential = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			Queries.query(values).groupBy(key).count();
+			sequential = Math.min(sequential, System.nanoTime() - start);
+		}
+		System.out.println("  sequential      " + sequential / 1000000 + " ms");
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < 5; i++) {
+				long start = System.nanoTime();
+				Queries.query(values).parallel().withPool(pool).groupBy(key)
+						.count();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			System.out.println("  parallel x" + threads + "     " + best
+					/ 1000000 + " ms, speedup " + (sequential * 100 / best)
+					/ 100.0);
+		}
+	}
+
+	/**
+	 * Compares the sequential join with the partitioned parallel join on 1
+	 * to 8 threads, joining two lists of 500k rows.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkParallelJoin() throws Exception {
+		ArrayList<Integer> outer = new ArrayList<Integer>();
+		ArrayList<Integer> inner = new ArrayList<Integer>();
+		for (int i = 0; i < 500000; i++) {
+			outer.add(i);
+			inner.add((i * 7) % 500000);
+		}
+		Selector<Integer, Integer> key = new Selector<Integer, Integer>() {
+
+			@Override
+			public Integer select(Integer item) {
+				return item;
+			}
+		};
+		Joint<Integer, Integer, Integer> joint = new Joint<Integer, Integer, Integer>() {
+
+			@Override
+			public Integer join(Integer arg1, Integer arg2) {
+				return arg1;
+			}
+		};
+
+		System.out.println("join, 500k x 500k rows:");
+		long sequential = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			Queries.query(outer).join(inner, key, key, joint).count();
+			sequential = Math.min(sequential, System.nanoTime() - start);
+		}
+		System.out.println("  sequential      " + sequential / 1000000 + " ms");
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			for (int ordered = 1; ordered >= 0; ordered--) {
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < 3; i++) {
+					long start = System.nanoTime();
+					Queries.query(outer).parallel().withPool(pool)
+							.join(inner, key, key, joint, ordered == 1)
+							.count();
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.println("  parallel x" + threads
+						+ (ordered == 1 ? " ordered   " : " unordered ")
+						+ best / 1000000 + " ms, speedup "
+						+ (sequential * 100 / best) / 100.0);
+			}
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Compares the sequential distinct with the partitioned parallel one on 1
+	 * to 8 threads, removing duplicates from 4M ids.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkParallelDistinct() throws Exception {
+		Integer[] values = new Integer[4000000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (i * 31) % 1000000;
+		}
+
+		System.out.println("distinct, 4M ids, 1M distinct:");
+		long sequential = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			Queries.query(values).distinct().count();
+			sequential = Math.min(sequential, System.nanoTime() - start);
+		}
+		System.out.println("  sequential      " + sequential / 1000000 + " ms");
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			for (int ordered = 1; ordered >= 0; ordered--) {
+				ParallelQuery<Integer> query = Queries.query(values).parallel()
+						.withPool(pool);
+				if (ordered == 0) {
+					query = query.asUnordered();
+				}
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < 3; i++) {
+					long start = System.nanoTime();
+					query.distinct().count();
+					best = Math.min(best, System.nanoTime() - start);
+				}
+				System.out.println("  parallel x" + threads
+						+ (ordered == 1 ? " ordered   " : " unordered ")
+						+ best / 1000000 + " ms, speedup "
+						+ (sequential * 100 / best) / 100.0);
+			}
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Compares the join through a comparator and a TreeMap with the hash
+	 * join, joining two lists of 500k rows.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkHashJoin() throws Exception {
+		ArrayList<Integer> outer = new ArrayList<Integer>();
+		ArrayList<Integer> inner = new ArrayList<Integer>();
+		for (int i = 0; i < 500000; i++) {
+			outer.add(i);
+			inner.add((i * 7) % 500000);
+		}
+		Selector<Integer, Integer> key = new Selector<Integer, Integer>() {
+
+			@Override
+			public Integer select(Integer item) {
+				return item;
+			}
+		};
+		Joint<Integer, Integer, Integer> joint = new Joint<Integer, Integer, Integer>() {
+
+			@Override
+			public Integer join(Integer arg1, Integer arg2) {
+				return arg1;
+			}
+		};
+
+		System.out.println("join lookup, 500k x 500k rows:");
+		long tree = Long.MAX_VALUE;
+		long hash = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			Queries.query(outer)
+					.join(inner, key, key, joint,
+							new NaturalComparator<Integer>()).count();
+			tree = Math.min(tree, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			Queries.query(outer).join(inner, key, key, joint).count();
+			hash = Math.min(hash, System.nanoTime() - start);
+		}
+		System.out.println("  TreeMap         " + tree / 1000000 + " ms");
+		System.out.println("  hash            " + hash / 1000000
+				+ " ms, speedup " + (tree * 100 / hash) / 100.0);
+	}
+
+	/**
+	 * Compares the bytes allocated by joining 100 rows against a reference
+	 * table of 1M rows, once with the table size hidden behind a select so
+	 * that the lookup is built from the whole table, and once with the size
+	 * known so that it is built from the 100 keys.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkJoinBuildSide() throws Exception {
+		ArrayList<Integer> outer = new ArrayList<Integer>();
+		for (int i = 0; i < 100; i++) {
+			outer.add(i * 1000);
+		}
+		ArrayList<Integer> table = new ArrayList<Integer>();
+		for (int i = 0; i < 1000000; i++) {
+			table.add(i);
+		}
+		Selector<Integer, Integer> key = new Selector<Integer, Integer>() {
+
+			@Override
+			public Integer select(Integer item) {
+				return item;
+			}
+		};
+		Joint<Integer, Integer, Integer> joint = new Joint<Integer, Integer, Integer>() {
+
+			@Override
+			public Integer join(Integer arg1, Integer arg2) {
+				return arg2;
+			}
+		};
+
+		System.out.println("join build side, 100 x 1M rows, bytes allocated:");
+		for (int known = 0; known <= 1; known++) {
+			Iterable<Integer> inner = known == 1 ? table : Queries
+					.query(table).select(key);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < 3; i++) {
+				long start = allocatedBytes();
+				Queries.query(outer).join(inner, key, key, joint).count();
+				best = Math.min(best, allocatedBytes() - start);
+			}
+			System.out.println((known == 1 ? "  build outer     "
+					: "  build inner     ") + best);
+		}
+	}
+
+	/**
+	 * Compares the time and bytes allocated by joining 200k x 200k rows on two
+	 * fields, once through a key list made per row and once through a
+	 * {@code CompositeKey}.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkCompositeJoin() throws Exception {
+		ArrayList<Object[]> outer = new ArrayList<Object[]>();
+		ArrayList<Object[]> inner = new ArrayList<Object[]>();
+		for (int i = 0; i < 200000; i++) {
+			outer.add(new Object[] { i / 100, "code" + (i % 100) });
+			int j = (i * 7) % 200000;
+			inner.add(new Object[] { j / 100, "code" + (j % 100) });
+		}
+		Selector<Object[], List<Object>> tuple = new Selector<Object[], List<Object>>() {
+
+			@Override
+			public List<Object> select(Object[] item) {
+				return Arrays.asList(item[0], item[1]);
+			}
+		};
+		Selector<Object[], Object> first = new Selector<Object[], Object>() {
+
+			@Override
+			public Object select(Object[] item) {
+				return item[0];
+			}
+		};
+		Selector<Object[], Object> second = new Selector<Object[], Object>() {
+
+			@Override
+			public Object select(Object[] item) {
+				return item[1];
+			}
+		};
+		CompositeKey<Object[]> key = CompositeKey.of(first, second);
+		Joint<Object[], Object[], Object[]> joint = new Joint<Object[], Object[], Object[]>() {
+
+			@Override
+			public Object[] join(Object[] arg1, Object[] arg2) {
+				return arg2;
+			}
+		};
+
+		System.out.println("join on two fields, 200k x 200k rows:");
+		long tupleTime = Long.MAX_VALUE;
+		long tupleBytes = Long.MAX_VALUE;
+		long compositeTime = Long.MAX_VALUE;
+		long compositeBytes = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			Queries.query(outer).join(inner, tuple, tuple, joint).count();
+			tupleTime = Math.min(tupleTime, System.nanoTime() - start);
+			tupleBytes = Math.min(tupleBytes, allocatedBytes() - bytes);
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			Queries.query(outer).join(inner, key, key, joint).count();
+			compositeTime = Math.min(compositeTime, System.nanoTime() - start);
+			compositeBytes = Math.min(compositeBytes, allocatedBytes() - bytes);
+		}
+		System.out.println("  key list        " + tupleTime / 1000000 + " ms, "
+				+ tupleBytes + " bytes");
+		System.out.println("  composite key   " + compositeTime / 1000000
+				+ " ms, " + compositeBytes + " bytes");
+	}
+
+	/**
+	 * Compares 100 joins of 1000 events against a reference table of 100k
+	 * rows, once building the lookup in every join and once probing a
+	 * {@code Lookup} built beforehand.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkLookupJoin() throws Exception {
+		ArrayList<Integer> events = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			events.add(i * 97);
+		}
+		ArrayList<Integer> table = new ArrayList<Integer>();
+		for (int i = 0; i < 100000; i++) {
+			table.add(i);
+		}
+		Selector<Integer, Integer> key = new Selector<Integer, Integer>() {
+
+			@Override
+			public Integer select(Integer item) {
+				return item;
+			}
+		};
+		Joint<Integer, Integer, Integer> joint = new Joint<Integer, Integer, Integer>() {
+
+			@Override
+			public Integer join(Integer arg1, Integer arg2) {
+				return arg2;
+			}
+		};
+		// a pipeline hides the table size, so the join cannot build on the
+		// events instead
+		Iterable<Integer> inner = Queries.query(table).select(key);
+
+		System.out.println("100 joins, 1000 x 100k rows:");
+		long rebuilt = Long.MAX_VALUE;
+		long prebuilt = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			for (int j = 0; j < 100; j++) {
+				Queries.query(events).join(inner, key, key, joint).count();
+			}
+			rebuilt = Math.min(rebuilt, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			Lookup<Integer, Integer> lookup = Queries.query(inner).toLookup(
+					key);
+			for (int j = 0; j < 100; j++) {
+				Queries.query(events).join(lookup, key, joint).count();
+			}
+			prebuilt = Math.min(prebuilt, System.nanoTime() - start);
+		}
+		System.out.println("  lookup per join " + rebuilt / 1000000 + " ms");
+		System.out.println("  prebuilt lookup " + prebuilt / 1000000
+				+ " ms, speedup " + (rebuilt * 100 / prebuilt) / 100.0);
+	}
+
+	/**
+	 * Compares the hashed intersect with the merging intersectSorted on a
+	 * sorted list of 2M rows and 1000 sparse rows, where galloping skips the
+	 * long runs between matches.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkSortedIntersect() throws Exception {
+		ArrayList<Integer> rows = new ArrayList<Integer>();
+		for (int i = 0; i < 2000000; i++) {
+			rows.add(i);
+		}
+		ArrayList<Integer> sparse = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			sparse.add(i * 1999);
+		}
+
+		System.out.println("intersect, 2M x 1000 sorted rows:");
+		long hashed = Long.MAX_VALUE;
+		long merged = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			Queries.query(rows).intersect(sparse).count();
+			hashed = Math.min(hashed, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			Queries.query(rows).intersectSorted(sparse).count();
+			merged = Math.min(merged, System.nanoTime() - start);
+		}
+		System.out.println("  hash set        " + hashed / 1000 + " us");
+		System.out.println("  galloping merge " + merged / 1000 + " us");
+	}
+
+	/**
+	 * Measures distinct().take(10) over 4M ids, which stops after the first
+	 * ten distinct ones now that distinct is streamed.
+	 *
+	 * @throws Exception the exception
+	 */
+	private static void benchmarkDistinctTake() throws Exception {
+		Integer[] values = new Integer[4000000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (i * 31) % 1000000;
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			Queries.query(values).distinct().take(10).count();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println("distinct().take(10), 4M ids: " + best / 1000
+				+ " us");
+	}
+
+	/**
+	 * Measures the bytes allocated by iterating specified query.
+	 *
+	 * @param query the query
+	 * @return the bytes allocated per iteration, or -1 if unknown
+	 */
+	private static long allocationsPerRun(Iterable<Integer> query) {
+		long sum = 0;
+		// warm up, and let the reusing query cache its iterators
+		for (int i = 0; i < RUNS; i++) {
+			for (Integer value : query) {
+				sum += value;
+			}
+		}
+
+		long start = allocatedBytes();
+		for (int i = 0; i < RUNS; i++) {
+			for (Integer value : query) {
+				sum += value;
+			}
+		}
+		long end = allocatedBytes();
+		if (sum == 42) {
+			System.out.println();
+		}
+		return start < 0 ? -1 : (end - start) / RUNS;
+	}
+
+	/**
+	 * Gets the bytes allocated so far by the current thread.
+	 *
+	 * @return the allocated bytes, or -1 if the JVM does not report them
+	 */
+	static long allocatedBytes() {
+		try {
+			Object bean = Class
+					.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean").invoke(null);
+			Method method = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}